@@ -0,0 +1,310 @@
+package org.swissbib.linked.mf.decoder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Keeps the statements of blank node trees which were incomplete when they were flushed in a temporary file and
+ * resolves them at the end of the input, one tree at a time, so memory usage is bounded by the largest tree and the
+ * sort chunk size rather than by the number of spilled statements.</p>
+ * <p>Which tree a statement belongs to isn't known when it is spilled, as the resource referring to a blank node may
+ * come later. So the resolution is done by means of external sorts: First, the roots are propagated down the trees
+ * level by level, joining the known roots of blank nodes with the statements they are subject of. Then every
+ * statement is tagged with its root, and the statements are sorted by root and emitted tree by tree in their original
+ * order.</p>
+ */
+final class BnodeSpill implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BnodeSpill.class);
+    private static final int MAX_DEPTH = 256;
+    private static final char ROOT = 'r';
+    private static final char BNODE = 'b';
+    private static final char LITERAL = 'l';
+    private static final String KNOWN = "0";
+    private static final String STATEMENT = "1";
+
+    private final int chunkSize;
+    private final List<Path> files = new ArrayList<>();
+    private final Path statements;      // seq, kind, subject, predicate, object in order of spilling
+    private final BufferedWriter writer;
+    private long size;
+
+    /**
+     * Receives the resolved trees
+     */
+    interface TreeReceiver {
+
+        void statement(String subject, String predicate, String object, boolean objectIsBnode);
+
+        void endTree();
+    }
+
+    /**
+     * @param chunkSize Maximal number of lines sorted in memory
+     */
+    BnodeSpill(int chunkSize) throws IOException {
+        this.chunkSize = chunkSize;
+        statements = tempFile();
+        writer = Files.newBufferedWriter(statements, StandardCharsets.UTF_8);
+        LOG.debug("Spilling incomplete blank node trees to {}", statements);
+    }
+
+    /**
+     * Spills a statement of a blank node tree. Statements with a resource as subject are the roots of the trees.
+     */
+    void add(String subject, String predicate, String object, boolean objectIsBnode) throws IOException {
+        char kind = !subject.startsWith("_:") ? ROOT : objectIsBnode ? BNODE : LITERAL;
+        writeLine(writer, seq(size++), String.valueOf(kind), subject, predicate, object);
+    }
+
+    /**
+     * @return Number of spilled statements
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Emits the spilled trees
+     *
+     * @param receiver Receiver of the statements of every tree
+     */
+    void resolve(TreeReceiver receiver) throws IOException {
+        writer.close();
+        LOG.info("Resolving {} spilled statements of blank node trees", size);
+        Path roots = propagateRoots();
+        Path tagged = tagStatements(roots);
+        try (SortedLineReader trees = sortedReader(tagged)) {
+            String currentRoot = null;
+            for (String line = trees.readLine(); line != null; line = trees.readLine()) {
+                String[] fields = fields(line);
+                if (currentRoot != null && !currentRoot.equals(fields[0])) receiver.endTree();
+                currentRoot = fields[0];
+                receiver.statement(fields[3], NameCache.canonical(fields[4]), fields[5], fields[2].charAt(0) != LITERAL);
+            }
+            if (currentRoot != null) receiver.endTree();
+        }
+    }
+
+    /**
+     * Determines the roots of all blank nodes: Starting with the blank nodes referred to by resources, the known
+     * roots are joined with the statements having a blank node as object, which yields the roots of the objects.
+     *
+     * @return File of lines label, KNOWN, root
+     */
+    private Path propagateRoots() throws IOException {
+        Path edges = tempFile();
+        Path known = tempFile();
+        Path frontier = tempFile();
+        try (BufferedReader reader = Files.newBufferedReader(statements, StandardCharsets.UTF_8);
+             BufferedWriter edgeWriter = Files.newBufferedWriter(edges, StandardCharsets.UTF_8);
+             BufferedWriter frontierWriter = Files.newBufferedWriter(frontier, StandardCharsets.UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                String[] fields = fields(line);
+                if (fields[1].charAt(0) == ROOT) {
+                    writeLine(frontierWriter, fields[4], KNOWN, fields[0]);
+                } else if (fields[1].charAt(0) == BNODE) {
+                    writeLine(edgeWriter, fields[2], STATEMENT, fields[4]);
+                }
+            }
+        }
+        for (int depth = 0; Files.size(frontier) > 0; depth++) {
+            if (depth == MAX_DEPTH) {
+                LOG.warn("Blank node trees deeper than {} levels or cyclic. Skipping further levels.", MAX_DEPTH);
+                break;
+            }
+            Path next = tempFile();
+            try (SortedLineReader joined = sortedReader(frontier, edges);
+                 BufferedWriter knownWriter = Files.newBufferedWriter(known, StandardCharsets.UTF_8,
+                         StandardOpenOption.APPEND);
+                 BufferedWriter nextWriter = Files.newBufferedWriter(next, StandardCharsets.UTF_8)) {
+                Join join = new Join();
+                for (String line = joined.readLine(); line != null; line = joined.readLine()) {
+                    String[] fields = join.next(line, knownWriter);
+                    if (fields == null) continue;
+                    for (String root : join.roots) {
+                        writeLine(nextWriter, fields[2], KNOWN, root);
+                    }
+                }
+            }
+            delete(frontier);
+            frontier = next;
+        }
+        return known;
+    }
+
+    /**
+     * Tags every statement with the root of the tree it belongs to
+     *
+     * @param roots File of lines label, KNOWN, root
+     * @return File of lines root, seq, kind, subject, predicate, object
+     */
+    private Path tagStatements(Path roots) throws IOException {
+        Path keyed = tempFile();
+        Path tagged = tempFile();
+        try (BufferedReader reader = Files.newBufferedReader(statements, StandardCharsets.UTF_8);
+             BufferedWriter keyedWriter = Files.newBufferedWriter(keyed, StandardCharsets.UTF_8);
+             BufferedWriter taggedWriter = Files.newBufferedWriter(tagged, StandardCharsets.UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                String[] fields = fields(line);
+                if (fields[1].charAt(0) == ROOT) {
+                    writeLine(taggedWriter, fields[0], fields[0], fields[1], fields[2], fields[3], fields[4]);
+                } else {
+                    writeLine(keyedWriter, fields[2], STATEMENT, fields[0], fields[1], fields[3], fields[4]);
+                }
+            }
+        }
+        try (SortedLineReader joined = sortedReader(roots, keyed);
+             BufferedWriter taggedWriter = Files.newBufferedWriter(tagged, StandardCharsets.UTF_8,
+                     StandardOpenOption.APPEND)) {
+            Join join = new Join();
+            String unreferenced = null;
+            for (String line = joined.readLine(); line != null; line = joined.readLine()) {
+                String[] fields = join.next(line, null);
+                if (fields == null) continue;
+                if (join.roots.isEmpty() && !fields[0].equals(unreferenced)) {
+                    unreferenced = fields[0];
+                    LOG.warn("Blank node {} is not referred to by any resource. Skipping it.", unreferenced);
+                }
+                for (String root : join.roots) {
+                    writeLine(taggedWriter, root, fields[2], fields[3], fields[0], fields[4], fields[5]);
+                }
+            }
+        }
+        delete(keyed);
+        return tagged;
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+        for (Path file : files) {
+            Files.deleteIfExists(file);
+        }
+        files.clear();
+    }
+
+    private Path tempFile() throws IOException {
+        Path file = Files.createTempFile("ntriples-bnodes", ".txt");
+        files.add(file);
+        return file;
+    }
+
+    private void delete(Path file) throws IOException {
+        Files.deleteIfExists(file);
+        files.remove(file);
+    }
+
+    private SortedLineReader sortedReader(Path... inputs) throws IOException {
+        List<InputStream> streams = new ArrayList<>();
+        for (Path input : inputs) {
+            streams.add(Files.newInputStream(input));
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new SequenceInputStream(Collections.enumeration(streams)), StandardCharsets.UTF_8))) {
+            return new SortedLineReader(reader, chunkSize);
+        }
+    }
+
+    private static String seq(long i) {
+        return String.format("%016x", i);
+    }
+
+    private static void writeLine(BufferedWriter writer, String... fields) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) writer.write('\t');
+            escape(writer, fields[i]);
+        }
+        writer.newLine();
+    }
+
+    private static void escape(BufferedWriter writer, String field) throws IOException {
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            switch (c) {
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                default:
+                    writer.write(c);
+            }
+        }
+    }
+
+    private static String[] fields(String line) {
+        List<String> fields = new ArrayList<>(6);
+        StringBuilder field = new StringBuilder();
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\t') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\\' && i + 1 < line.length()) {
+                c = line.charAt(++i);
+                field.append(c == 't' ? '\t' : c == 'n' ? '\n' : c == 'r' ? '\r' : c);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[0]);
+    }
+
+    /**
+     * Walks a stream sorted by blank node label in which the known roots of a blank node precede the statements
+     * having it as subject
+     */
+    private static final class Join {
+        private String label;
+        private String lastKnown;
+        private final List<String> roots = new ArrayList<>();
+
+        /**
+         * @param line        Next line of the sorted stream
+         * @param knownWriter Writer the known roots are copied to or null
+         * @return Fields of a statement, whose roots are then available, or null if the line is a known root
+         */
+        private String[] next(String line, BufferedWriter knownWriter) throws IOException {
+            String[] fields = fields(line);
+            if (!fields[0].equals(label)) {
+                label = fields[0];
+                roots.clear();
+            }
+            if (!KNOWN.equals(fields[1])) return fields;
+            // Blank nodes shared by several parents of the same tree are reached more than once
+            if (!line.equals(lastKnown)) {
+                lastKnown = line;
+                roots.add(fields[2]);
+                if (knownWriter != null) {
+                    knownWriter.write(line);
+                    knownWriter.newLine();
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -8,6 +8,7 @@ import org.metafacture.framework.annotations.Out;
 import org.metafacture.framework.helpers.DefaultObjectPipe;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -17,7 +18,7 @@ import java.util.List;
  *          Created on 25.10.16
  */
 @Description("Parses json records. Null values are returned as empty string by default and can be changed by setting" +
-        "parameter nullValue.")
+        "parameter nullValue. Set parameter fields to decode only certain fields.")
 @In(String.class)
 @Out(StreamReceiver.class)
 @FluxCommand("decode-json")
@@ -26,298 +27,516 @@ public class JsonDecoder extends DefaultObjectPipe<String, StreamReceiver> {
     private static final char ENDOBJECT = '}';
     private static final char STARTARRAY = '[';
     private static final char ENDARRAY = ']';
-    private static final char STARTSTRINGVALUE = '"';
-    private static final char ENDSTRINGVALUE = '"';
+    private static final char STRINGDELIMITER = '"';
     private static final char KEYVALUESEPARATOR = ':';
     private static final char ELEMENTSEPARATOR = ',';
     private static final char WHITESPACE = ' ';
-    private static final char ESCAPESPECIALCHAR = '\'';
+    private static final char TAB = '\t';
+    private static final char NEWLINE = '\n';
+    private static final char CARRIAGERETURN = '\r';
+    private static final char ESCAPESPECIALCHAR = '\\';
+    // Containers on the path
     private static final byte OBJECT = 0;
     private static final byte ARRAY = 1;
-    private static final byte STRINGVALUE = 2;
-    private static final byte NONSTRINGVALUE = 3;
-    private static final StringBuilder charCollector = new StringBuilder();
-    private String nullValue = "";
-    private boolean escapeSpecialChar = false;
+    // States of the lexer
+    private static final byte INSTRUCTURE = 0;
+    private static final byte INSTRINGVALUE = 1;
+    private static final byte INESCAPESEQUENCE = 2;
+    private static final byte INUNICODESEQUENCE = 3;
+    private static final byte INNONSTRINGVALUE = 4;
+    private static final byte SKIPPINGSTRUCTURE = 5;
+    private static final byte SKIPPINGSTRINGVALUE = 6;
+    private static final byte SKIPPINGESCAPESEQUENCE = 7;
+    private static final byte SKIPPINGNONSTRINGVALUE = 8;
+    // Categories of non-string values
+    private static final byte INVALID = 0;
+    private static final byte NULL = 1;
+    private static final byte BOOLEAN = 2;
+    private static final byte NUMBER = 3;
+    private final StringBuilder charCollector = new StringBuilder();
     private final Path path = new Path();
+    private String nullValue = "";
+    private Projection projection;
+    private byte state = INSTRUCTURE;
+    private boolean valueExpected = false;
+    private boolean skipValue = false;
+    private Projection valueProjection;
+    private int skipDepth;
+    private int unicodeValue;
+    private int unicodeDigits;
     private String key = "";
 
-    private static boolean charNotInArray(char character, char[] array) {
-        for (char elem : array) {
-            if (elem == character) {
-                return false;
-            }
-        }
-        return true;
-    }
-
     public void setNullValue(String nullValue) {
         this.nullValue = nullValue;
     }
 
+    /**
+     * Restricts decoding to certain fields. Values of all other fields are skipped without emitting any events. If a
+     * field is an object, the whole object is kept.
+     *
+     * @param fields Paths of fields to keep, delimited by #. Keys in a path are delimited by a dot, e.g. e3.k31
+     */
+    public void setFields(String fields) {
+        projection = new Projection(null);
+        for (String field : fields.split("#")) {
+            projection.add(field.split("\\."), 0);
+        }
+    }
+
     @Override
     public void process(String obj) {
-
         for (int i = 0; i < obj.length(); i++) {
-            char c = obj.charAt(i);
-            if (path.empty()) {
-                if (c == STARTOBJECT) {
-                    path.add(new JsonObject(""));
-                    getReceiver().startRecord("");
-                }
-            } else {
-                if (escapeSpecialChar) {
-                    charCollector.append(c);
-                    escapeSpecialChar = false;
-                } else {
-                    if (path.insideStringValue()) {
-                        switch (c) {
-                            case ESCAPESPECIALCHAR:
-                                escapeSpecialChar = true;
-                                break;
-                            case ENDSTRINGVALUE:
-                                path.remove();
-                                if (key.length() > 0) {
-                                    getReceiver().literal(key, charCollector.toString());
-                                    if (!path.array()) key = "";
-                                } else {
-                                    key = charCollector.toString();
-                                }
-                                charCollector.setLength(0);
-                                break;
-                            default:
-                                charCollector.append(c);
-                        }
-                    } else if (path.insideNonStringValue()) {
-                        switch (c) {
-                            case ELEMENTSEPARATOR:
-                            case ENDOBJECT:
-                            case ENDARRAY:
-                            case WHITESPACE:
-                                if (valueIsNull()) {
-                                    getReceiver().literal(key, nullValue);
-                                } else if (valueIsBoolean() || valueIsNumber()) {
-                                    getReceiver().literal(key, charCollector.toString());
-                                } else {
-                                    // Todo: Better exception handling...
-                                    getReceiver().literal(key, "");
-                                }
-                                charCollector.setLength(0);
-                                path.remove();
-                                if (!path.array()) {
-                                    key = "";
-                                }
-                                if (path.empty() || path.onRootLevel()) {
-                                    getReceiver().endRecord();
-                                }
-                                if (c == ENDARRAY) {
-                                    key = "";
-                                    path.remove();
-                                }
-                                break;
-                            case ESCAPESPECIALCHAR:
-                                escapeSpecialChar = true;
-                            default:
-                                charCollector.append(c);
-                        }
-                    } else {  // Not inside value
-                        switch (c) {
-                            case STARTOBJECT:
-                                if (path.empty()) {
-                                    getReceiver().startRecord("");
-                                } else {
-                                    if (path.array()) { // In case objects are in an array
-                                        key = path.last().key();
-                                    }
-                                    getReceiver().startEntity(key);
-                                }
-                                path.add(new JsonObject(key));
-                                key = "";
-                                break;
-                            case ENDOBJECT:
-                                if (path.aboveRootLevel()) {
-                                    getReceiver().endEntity();
-                                } else {
-                                    getReceiver().endRecord();
-                                }
-                                path.remove();
-                                if (path.array()) {
-                                    key = path.last().key;
-                                }
-                                break;
-                            case STARTARRAY:
-                                path.add(new JsonArray(key));
-                                break;
-                            case ENDARRAY:
-                                path.remove();
-                                key = "";
-                                break;
-                            case STARTSTRINGVALUE:
-                                path.add(new JsonLiteral());
-                                break;
-                            case ESCAPESPECIALCHAR:
-                                escapeSpecialChar = true;
-                                break;
-                            case ELEMENTSEPARATOR:
-                            case KEYVALUESEPARATOR:
-                            case WHITESPACE:
-                                break;
-                            default:
-                                charCollector.append(c);
-                                path.add(new JsonSpecialLiteral());
-                        }
-                    }
-                }
-            }
+            decode(obj.charAt(i));
         }
     }
 
-    abstract private class JsonToken {
-        String key;
+    /**
+     * Decodes a chunk of characters. As the state of the decoder is kept between calls, a JSON document can be split
+     * at arbitrary positions and fed in several chunks.
+     *
+     * @param buffer Buffer holding the characters
+     * @param offset Position of the first character to be decoded
+     * @param length Number of characters to be decoded
+     */
+    void process(char[] buffer, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            decode(buffer[i]);
+        }
+    }
 
-        abstract byte type();
+    @Override
+    protected void onResetStream() {
+        reset();
+    }
 
-        abstract String key();
+    /**
+     * Discards the state of a partially decoded document
+     */
+    void reset() {
+        path.clear();
+        charCollector.setLength(0);
+        state = INSTRUCTURE;
+        valueExpected = false;
+        skipValue = false;
+        key = "";
     }
 
-    private class JsonArray extends JsonToken {
-        JsonArray(String name) {
-            this.key = name;
+    private void decode(char c) {
+        switch (state) {
+            case INSTRINGVALUE:
+                if (c == STRINGDELIMITER) {
+                    state = INSTRUCTURE;
+                    endStringValue();
+                } else if (c == ESCAPESPECIALCHAR) {
+                    state = INESCAPESEQUENCE;
+                } else {
+                    charCollector.append(c);
+                }
+                break;
+            case INESCAPESEQUENCE:
+                decodeEscapeSequence(c);
+                break;
+            case INUNICODESEQUENCE:
+                unicodeValue = (unicodeValue << 4) + Character.digit(c, 16);
+                if (++unicodeDigits == 4) {
+                    charCollector.append((char) unicodeValue);
+                    state = INSTRINGVALUE;
+                }
+                break;
+            case INNONSTRINGVALUE:
+                switch (c) {
+                    case ELEMENTSEPARATOR:
+                    case ENDOBJECT:
+                    case ENDARRAY:
+                    case WHITESPACE:
+                    case TAB:
+                    case NEWLINE:
+                    case CARRIAGERETURN:
+                        state = INSTRUCTURE;
+                        endNonStringValue();
+                        // The character terminating the value can close an object or an array as well
+                        decodeStructure(c);
+                        break;
+                    default:
+                        charCollector.append(c);
+                }
+                break;
+            case SKIPPINGSTRUCTURE:
+                switch (c) {
+                    case STARTOBJECT:
+                    case STARTARRAY:
+                        skipDepth++;
+                        break;
+                    case ENDOBJECT:
+                    case ENDARRAY:
+                        if (--skipDepth == 0) {
+                            state = INSTRUCTURE;
+                        }
+                        break;
+                    case STRINGDELIMITER:
+                        state = SKIPPINGSTRINGVALUE;
+                        break;
+                }
+                break;
+            case SKIPPINGSTRINGVALUE:
+                if (c == STRINGDELIMITER) {
+                    state = skipDepth > 0 ? SKIPPINGSTRUCTURE : INSTRUCTURE;
+                } else if (c == ESCAPESPECIALCHAR) {
+                    state = SKIPPINGESCAPESEQUENCE;
+                }
+                break;
+            case SKIPPINGESCAPESEQUENCE:
+                state = SKIPPINGSTRINGVALUE;
+                break;
+            case SKIPPINGNONSTRINGVALUE:
+                switch (c) {
+                    case ELEMENTSEPARATOR:
+                    case ENDOBJECT:
+                    case ENDARRAY:
+                    case WHITESPACE:
+                    case TAB:
+                    case NEWLINE:
+                    case CARRIAGERETURN:
+                        state = INSTRUCTURE;
+                        decodeStructure(c);
+                        break;
+                }
+                break;
+            default:
+                decodeStructure(c);
         }
+    }
 
-        @Override
-        byte type() {
-            return ARRAY;
+    private void decodeStructure(char c) {
+        if (path.empty()) {
+            if (c == STARTOBJECT) {
+                getReceiver().startRecord("");
+                path.push(OBJECT, "", projection);
+                valueExpected = false;
+            }
+            return;
+        }
+        if (skipValue && valueExpected && c != KEYVALUESEPARATOR && !Character.isWhitespace(c)) {
+            skipValue(c);
+            return;
         }
+        switch (c) {
+            case STARTOBJECT:
+                String name = valueName();
+                getReceiver().startEntity(name);
+                path.push(OBJECT, name, valueProjection());
+                valueExpected = false;
+                break;
+            case ENDOBJECT:
+                path.pop();
+                if (path.empty()) {
+                    getReceiver().endRecord();
+                } else {
+                    getReceiver().endEntity();
+                }
+                valueExpected = false;
+                break;
+            case STARTARRAY:
+                path.push(ARRAY, valueName(), valueProjection());
+                break;
+            case ENDARRAY:
+                if (path.inArray()) {
+                    path.pop();
+                }
+                valueExpected = false;
+                break;
+            case STRINGDELIMITER:
+                state = INSTRINGVALUE;
+                break;
+            case KEYVALUESEPARATOR:
+                valueExpected = true;
+                break;
+            case ELEMENTSEPARATOR:
+                valueExpected = false;
+                skipValue = false;
+                break;
+            case WHITESPACE:
+            case TAB:
+            case NEWLINE:
+            case CARRIAGERETURN:
+                break;
+            default:
+                charCollector.append(c);
+                state = INNONSTRINGVALUE;
+        }
+    }
 
-        @Override
-        String key() {
-            return this.key;
+    /**
+     * Skips a value which is not part of the selected fields. Objects and arrays are skipped by counting their depth.
+     *
+     * @param c First character of value
+     */
+    private void skipValue(char c) {
+        skipValue = false;
+        switch (c) {
+            case STARTOBJECT:
+            case STARTARRAY:
+                skipDepth = 1;
+                state = SKIPPINGSTRUCTURE;
+                break;
+            case STRINGDELIMITER:
+                skipDepth = 0;
+                state = SKIPPINGSTRINGVALUE;
+                break;
+            default:
+                state = SKIPPINGNONSTRINGVALUE;
         }
     }
 
-    private class JsonObject extends JsonToken {
-        JsonObject(String name) {
-            this.key = name;
+    private void decodeEscapeSequence(char c) {
+        state = INSTRINGVALUE;
+        switch (c) {
+            case 'b':
+                charCollector.append('\b');
+                break;
+            case 'f':
+                charCollector.append('\f');
+                break;
+            case 'n':
+                charCollector.append('\n');
+                break;
+            case 'r':
+                charCollector.append('\r');
+                break;
+            case 't':
+                charCollector.append('\t');
+                break;
+            case 'u':
+                unicodeValue = 0;
+                unicodeDigits = 0;
+                state = INUNICODESEQUENCE;
+                break;
+            default:
+                // Covers \", \\ and \/ as well as invalid escape sequences
+                charCollector.append(c);
         }
+    }
 
-        @Override
-        byte type() {
-            return OBJECT;
+    /**
+     * Gets the name of the value which is about to be decoded: Inside an object it is the last key, inside an array
+     * the name of the array.
+     */
+    private String valueName() {
+        return path.inArray() ? path.lastKey() : key;
+    }
+
+    /**
+     * Gets the selected fields inside of the value which is about to be decoded (null if all fields are selected)
+     */
+    private Projection valueProjection() {
+        return path.inArray() ? path.lastProjection() : valueProjection;
+    }
+
+    private void endStringValue() {
+        if (path.inArray() || valueExpected) {
+            getReceiver().literal(valueName(), charCollector.toString());
+        } else if (path.lastProjection() != null) {
+            valueProjection = path.lastProjection().find(charCollector);
+            skipValue = valueProjection == null;
+            key = skipValue ? "" : valueProjection.name;
+            if (!skipValue && valueProjection.keepAll()) valueProjection = null;
+        } else {
+            key = NameCache.canonical(charCollector);
+            valueProjection = null;
         }
+        charCollector.setLength(0);
+    }
 
-        @Override
-        String key() {
-            return this.key;
+    private void endNonStringValue() {
+        switch (classifyNonStringValue()) {
+            case NULL:
+                getReceiver().literal(valueName(), nullValue);
+                break;
+            case BOOLEAN:
+            case NUMBER:
+                getReceiver().literal(valueName(), charCollector.toString());
+                break;
+            default:
+                // Todo: Better exception handling...
+                getReceiver().literal(valueName(), "");
         }
+        charCollector.setLength(0);
     }
 
-    private class JsonLiteral extends JsonToken {
-        @Override
-        byte type() {
-            return STRINGVALUE;
+    /**
+     * Determines in a single pass over the collected characters if a non-string value is a number, a boolean or null
+     *
+     * @return Category of value
+     */
+    private byte classifyNonStringValue() {
+        switch (charCollector.charAt(0)) {
+            case 'n':
+                return collected("null") ? NULL : INVALID;
+            case 't':
+                return collected("true") ? BOOLEAN : INVALID;
+            case 'f':
+                return collected("false") ? BOOLEAN : INVALID;
+            default:
+                return collectedNumber() ? NUMBER : INVALID;
         }
+    }
 
-        @Override
-        String key() {
-            return "";
+    private boolean collected(String literal) {
+        if (charCollector.length() != literal.length()) {
+            return false;
         }
+        for (int i = 1; i < literal.length(); i++) {
+            if (charCollector.charAt(i) != literal.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private class JsonSpecialLiteral extends JsonToken {
-        @Override
-        byte type() {
-            return NONSTRINGVALUE;
+    /**
+     * Checks if the collected characters conform to the JSON number grammar (-?(0|[1-9][0-9]*)(.[0-9]+)?([eE][+-]?[0-9]+)?)
+     */
+    private boolean collectedNumber() {
+        int length = charCollector.length();
+        int i = 0;
+        if (charCollector.charAt(i) == '-') {
+            i++;
+        }
+        if (i == length) {
+            return false;
+        }
+        if (charCollector.charAt(i) == '0') {
+            i++;
+        } else {
+            int start = i;
+            i = skipDigits(i);
+            if (i == start) {
+                return false;
+            }
         }
+        if (i < length && charCollector.charAt(i) == '.') {
+            int start = ++i;
+            i = skipDigits(i);
+            if (i == start) {
+                return false;
+            }
+        }
+        if (i < length && (charCollector.charAt(i) == 'e' || charCollector.charAt(i) == 'E')) {
+            i++;
+            if (i < length && (charCollector.charAt(i) == '+' || charCollector.charAt(i) == '-')) {
+                i++;
+            }
+            int start = i;
+            i = skipDigits(i);
+            if (i == start) {
+                return false;
+            }
+        }
+        return i == length;
+    }
 
-        @Override
-        String key() {
-            return "";
+    private int skipDigits(int i) {
+        while (i < charCollector.length() && charCollector.charAt(i) >= '0' && charCollector.charAt(i) <= '9') {
+            i++;
         }
+        return i;
     }
 
+    /**
+     * Stack of the objects and arrays enclosing the current position. Types and names of the containers are kept in
+     * parallel arrays, so that no token objects have to be created.
+     */
     private class Path {
-        private final List<JsonToken> path = new ArrayList<>();
+        private byte[] types = new byte[32];
+        private String[] keys = new String[32];
+        private Projection[] projections = new Projection[32];
+        private int size = 0;
 
         boolean empty() {
-            return path.size() == 0;
+            return size == 0;
         }
 
-        boolean onRootLevel() { return path.size() == 1; }
-
-        boolean aboveRootLevel() { return path.size() > 1;}
-
-        void add(JsonToken token) {
-            path.add(token);
+        void push(byte type, String key, Projection projection) {
+            if (size == types.length) {
+                types = Arrays.copyOf(types, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+                projections = Arrays.copyOf(projections, size * 2);
+            }
+            types[size] = type;
+            keys[size] = key;
+            projections[size] = projection;
+            size++;
         }
 
-        void remove() {
-            path.remove(indexLast());
+        void pop() {
+            size--;
+            keys[size] = null;
+            projections[size] = null;
         }
 
-        private JsonToken last() {
-            return path.get(indexLast());
+        void clear() {
+            Arrays.fill(keys, 0, size, null);
+            Arrays.fill(projections, 0, size, null);
+            size = 0;
         }
 
-        int size() {
-            return path.size();
+        boolean inArray() {
+            return size > 0 && types[size - 1] == ARRAY;
         }
 
-        boolean array() {
-            return !empty() && last().type() == ARRAY;
+        String lastKey() {
+            return keys[size - 1];
         }
 
-        boolean insideStringValue() {
-            return !empty() && last().type() == STRINGVALUE;
+        Projection lastProjection() {
+            return projections[size - 1];
         }
+    }
 
-        boolean insideNonStringValue() {
-            return !empty() && last().type() == NONSTRINGVALUE;
-        }
+    /**
+     * Tree of selected fields. A node without children selects the whole value of the field.
+     */
+    private static class Projection {
+        private final String name;
+        private final List<Projection> children = new ArrayList<>();
+        private boolean keepAll = false;
 
-        private int indexLast() {
-            return path.size() - 1;
+        Projection(String name) {
+            this.name = name;
         }
-    }
 
-    private boolean valueIsNumber() {
-        String value = charCollector.toString();
-        boolean valid = true;
-        boolean followedBySign = false;
-        char[] validFirstChars = {'-', '1', '2', '3', '4', '5', '6', '7', '8', '9'};
-        char[] validMiddleChars = {'-', '+', 'e', 'E', '.', '0', '1', '2', '3', '4', '5', '6', '7', '8', '9'};
-        char[] validLastChars = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9'};
-        if (charNotInArray(value.charAt(0), validFirstChars)) {
-            valid = false;
-        }
-        for (int i = 1; i < value.length() - 1; i++) {
-            if (charNotInArray(value.charAt(i), validMiddleChars)) {
-                valid = false;
-                break;
-            } else if (value.charAt(i) == 'e' || value.charAt(i) == 'E') {
-                followedBySign = true;
-            } else if (followedBySign) {
-                if (!(value.charAt(i) == '-' || value.charAt(i) == '+')) { // e not followed by - or +
-                    valid = false;
-                } else {
-                    followedBySign = false;
-                }
+        void add(String[] keys, int level) {
+            if (level == keys.length) {
+                keepAll = true;
+                return;
             }
+            Projection child = null;
+            for (Projection p : children) {
+                if (p.name.equals(keys[level])) child = p;
+            }
+            if (child == null) {
+                child = new Projection(keys[level]);
+                children.add(child);
+            }
+            child.add(keys, level + 1);
         }
-        if (charNotInArray(value.charAt(value.length() - 1), validLastChars)) {
-            valid = false;
-        }
-        return valid;
-    }
 
-    private boolean valueIsNull() {
-       return charCollector.toString().equals("null");
-    }
+        boolean keepAll() {
+            return keepAll;
+        }
 
-    private boolean valueIsBoolean() {
-        return charCollector.toString().equals("true") ||
-                                        charCollector.toString().equals("false");
+        /**
+         * Looks up a key without creating a string from it
+         *
+         * @param key Characters of key
+         * @return Node of key or null if the key is not selected
+         */
+        Projection find(CharSequence key) {
+            for (Projection p : children) {
+                if (p.name.contentEquals(key)) return p;
+            }
+            return null;
+        }
     }
 
 }
-
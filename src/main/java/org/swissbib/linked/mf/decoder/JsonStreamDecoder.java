@@ -0,0 +1,69 @@
+package org.swissbib.linked.mf.decoder;
+
+import org.metafacture.framework.FluxCommand;
+import org.metafacture.framework.MetafactureException;
+import org.metafacture.framework.StreamReceiver;
+import org.metafacture.framework.annotations.Description;
+import org.metafacture.framework.annotations.In;
+import org.metafacture.framework.annotations.Out;
+import org.metafacture.framework.helpers.DefaultObjectPipe;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * <p>Decodes JSON records directly from a {@code Reader}. Every root object in the stream (either concatenated, one
+ * per line or wrapped in a root array) is emitted as a record.</p>
+ * <p>In contrast to a combination of {@link org.swissbib.linked.mf.io.JsonObjectReader} and {@link JsonDecoder},
+ * the records are never materialised as strings: The reader is scanned chunk-wise through a bounded buffer, and the
+ * events are emitted while scanning, so memory usage doesn't depend on the size of the records.</p>
+ */
+@Description("Decodes JSON records directly from a reader without materialising them as strings. Null values are " +
+        "returned as empty string by default and can be changed by setting parameter nullValue.")
+@In(Reader.class)
+@Out(StreamReceiver.class)
+@FluxCommand("decode-json-stream")
+public final class JsonStreamDecoder extends DefaultObjectPipe<Reader, StreamReceiver> {
+
+    private static final int BUFFER_SIZE = 1024 * 64;
+
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private final JsonDecoder decoder = new JsonDecoder();
+
+    public void setNullValue(String nullValue) {
+        decoder.setNullValue(nullValue);
+    }
+
+    /**
+     * Restricts decoding to certain fields (see {@link JsonDecoder#setFields(String)})
+     *
+     * @param fields Paths of fields to keep, delimited by #. Keys in a path are delimited by a dot
+     */
+    public void setFields(String fields) {
+        decoder.setFields(fields);
+    }
+
+    @Override
+    public void process(final Reader reader) {
+        assert !isClosed();
+
+        try {
+            int size;
+            while ((size = reader.read(buffer)) != -1) {
+                decoder.process(buffer, 0, size);
+            }
+        } catch (final IOException e) {
+            throw new MetafactureException(e);
+        }
+    }
+
+    @Override
+    protected void onSetReceiver() {
+        decoder.setReceiver(getReceiver());
+    }
+
+    @Override
+    protected void onResetStream() {
+        decoder.reset();
+    }
+}
@@ -0,0 +1,452 @@
+package org.swissbib.linked.mf.decoder;
+
+import org.metafacture.framework.FluxCommand;
+import org.metafacture.framework.MetafactureException;
+import org.metafacture.framework.StreamReceiver;
+import org.metafacture.framework.annotations.Description;
+import org.metafacture.framework.annotations.In;
+import org.metafacture.framework.annotations.Out;
+import org.metafacture.framework.helpers.DefaultObjectPipe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * <p>Decodes a UTF-8 encoded JSON or NDJSON file by memory-mapping it and working directly on the raw bytes. The
+ * events are the same as the ones emitted by {@link JsonDecoder}.</p>
+ * <p>The file is processed in windows. In a first pass over a window the positions of all structural characters
+ * outside of strings (<code>{ } [ ] : ,</code> and the string delimiters) are collected in an index. Bytes inside of
+ * strings are skipped eight at a time as long as they contain neither a quotation mark nor a backslash. The second
+ * pass walks the index and emits the events. Strings are decoded only when they are emitted, and numbers, booleans and
+ * null values are found in the gaps between the structural characters. A window always starts at the beginning of a
+ * root object, and only root objects which are complete inside the window are emitted, so that a record which
+ * crosses the window boundary is decoded in the next window. The index is reused for all windows, so its size is
+ * bounded by the largest window.</p>
+ */
+@Description("Decodes a UTF-8 encoded JSON or NDJSON file by memory-mapping it. Expects the path to the file. Null " +
+        "values are returned as empty string by default and can be changed by setting parameter nullValue.")
+@In(String.class)
+@Out(StreamReceiver.class)
+@FluxCommand("decode-json-mmap")
+public final class MappedJsonDecoder extends DefaultObjectPipe<String, StreamReceiver> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedJsonDecoder.class);
+
+    private static final byte STARTOBJECT = '{';
+    private static final byte ENDOBJECT = '}';
+    private static final byte STARTARRAY = '[';
+    private static final byte ENDARRAY = ']';
+    private static final byte STRINGDELIMITER = '"';
+    private static final byte KEYVALUESEPARATOR = ':';
+    private static final byte ELEMENTSEPARATOR = ',';
+    private static final byte ESCAPESPECIALCHAR = '\\';
+    // Marks the closing delimiter of a string which contains escape sequences
+    private static final int ESCAPED = 0x80000000;
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHBITS = 0x8080808080808080L;
+    private static final long DELIMITERS = ONES * STRINGDELIMITER;
+    private static final long BACKSLASHES = ONES * ESCAPESPECIALCHAR;
+
+    private int windowSize = 1 << 22;
+    private String nullValue = "";
+
+    private MappedByteBuffer window;
+    private int[] index = new int[1024];
+    private int indexSize;
+    private int completeEntries;
+    private int completeBytes;
+    private byte[] scratch = new byte[1024];
+
+    private byte[] types = new byte[32];
+    private String[] names = new String[32];
+    private int depth;
+    private boolean valueExpected;
+    private int keyStart;
+    private int keyEnd;
+    private String key;
+
+    public void setNullValue(String nullValue) {
+        this.nullValue = nullValue;
+    }
+
+    /**
+     * Sets the initial size of the mapped windows in bytes. Windows which don't contain a complete record are
+     * enlarged automatically.
+     *
+     * @param windowSize Size of window in bytes
+     */
+    public void setWindowSize(String windowSize) {
+        this.windowSize = Integer.parseInt(windowSize);
+    }
+
+    @Override
+    public void process(final String fileName) {
+        assert !isClosed();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            long base = 0;
+            int size = windowSize;
+            while (base < fileSize) {
+                int length = (int) Math.min(size, fileSize - base);
+                window = channel.map(FileChannel.MapMode.READ_ONLY, base, length);
+                indexStructure(length);
+                if (completeEntries == 0) {
+                    if (base + length == fileSize) {
+                        if (!onlyClosingCharacters(length)) {
+                            LOG.warn("File {} ends with an incomplete record, which is skipped", fileName);
+                        }
+                        break;
+                    }
+                    if (size == Integer.MAX_VALUE) {
+                        throw new MetafactureException("Record at byte " + base + " exceeds maximal window size");
+                    }
+                    // No record is complete in window
+                    size = (int) Math.min(Integer.MAX_VALUE, (long) size * 2);
+                    continue;
+                }
+                emitRecords();
+                base += completeBytes;
+                size = windowSize;
+            }
+        } catch (IOException e) {
+            throw new MetafactureException(e);
+        } finally {
+            window = null;
+        }
+    }
+
+    /**
+     * First pass: Collects the positions of all structural characters in the window
+     *
+     * @param limit Number of bytes in window
+     */
+    private void indexStructure(int limit) {
+        indexSize = 0;
+        completeEntries = 0;
+        completeBytes = 0;
+        int level = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        int i = 0;
+        while (i < limit) {
+            if (inString) {
+                while (i + 8 <= limit && !containsDelimiterOrBackslash(window.getLong(i))) {
+                    i += 8;
+                }
+                if (i >= limit) {
+                    break;
+                }
+                byte b = window.get(i);
+                if (b == ESCAPESPECIALCHAR) {
+                    escaped = true;
+                    i++;
+                } else if (b == STRINGDELIMITER) {
+                    inString = false;
+                    if (level > 0) addToIndex(escaped ? i | ESCAPED : i);
+                }
+            } else {
+                switch (window.get(i)) {
+                    case STRINGDELIMITER:
+                        inString = true;
+                        escaped = false;
+                        if (level > 0) addToIndex(i);
+                        break;
+                    case STARTOBJECT:
+                        level++;
+                        addToIndex(i);
+                        break;
+                    case ENDOBJECT:
+                    case ENDARRAY:
+                        if (level > 0) {
+                            addToIndex(i);
+                            if (--level == 0) {
+                                completeEntries = indexSize;
+                                completeBytes = i + 1;
+                            }
+                        }
+                        break;
+                    case STARTARRAY:
+                        if (level > 0) {
+                            level++;
+                            addToIndex(i);
+                        }
+                        break;
+                    case KEYVALUESEPARATOR:
+                    case ELEMENTSEPARATOR:
+                        if (level > 0) addToIndex(i);
+                        break;
+                }
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Checks if the window contains nothing but whitespace and the closing bracket or separators of a root array, as
+     * is the case after the last record of a file
+     *
+     * @param limit Number of bytes in window
+     * @return true if there is no further record
+     */
+    private boolean onlyClosingCharacters(int limit) {
+        for (int i = 0; i < limit; i++) {
+            byte b = window.get(i);
+            if (!isWhitespace(b) && b != ENDARRAY && b != ELEMENTSEPARATOR) return false;
+        }
+        return true;
+    }
+
+    private static boolean containsDelimiterOrBackslash(long word) {
+        long delimiters = word ^ DELIMITERS;
+        long backslashes = word ^ BACKSLASHES;
+        return ((((delimiters - ONES) & ~delimiters) | ((backslashes - ONES) & ~backslashes)) & HIGHBITS) != 0;
+    }
+
+    private void addToIndex(int position) {
+        if (indexSize == index.length) {
+            index = Arrays.copyOf(index, indexSize * 2);
+        }
+        index[indexSize++] = position;
+    }
+
+    /**
+     * Second pass: Walks the index of the complete records in the window and emits the events
+     */
+    private void emitRecords() {
+        for (int i = 0; i < completeEntries; i++) {
+            int position = index[i];
+            switch (window.get(position)) {
+                case STARTOBJECT:
+                    if (depth == 0) {
+                        getReceiver().startRecord("");
+                        push(STARTOBJECT, "");
+                    } else {
+                        String name = valueName();
+                        getReceiver().startEntity(name);
+                        push(STARTOBJECT, name);
+                    }
+                    valueExpected = false;
+                    break;
+                case ENDOBJECT:
+                    emitNonStringValue(i);
+                    depth--;
+                    if (depth == 0) {
+                        getReceiver().endRecord();
+                    } else {
+                        getReceiver().endEntity();
+                    }
+                    valueExpected = false;
+                    break;
+                case STARTARRAY:
+                    push(STARTARRAY, valueName());
+                    break;
+                case ENDARRAY:
+                    emitNonStringValue(i);
+                    depth--;
+                    valueExpected = false;
+                    break;
+                case KEYVALUESEPARATOR:
+                    valueExpected = true;
+                    break;
+                case ELEMENTSEPARATOR:
+                    emitNonStringValue(i);
+                    valueExpected = false;
+                    break;
+                case STRINGDELIMITER:
+                    int end = index[++i];
+                    if (inArray() || valueExpected) {
+                        getReceiver().literal(valueName(), decodeString(position + 1, end));
+                    } else {
+                        keyStart = position + 1;
+                        keyEnd = end;
+                        key = null;
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Emits a number, boolean or null value which is terminated by the structural character at the given index entry
+     *
+     * @param entry Entry of the terminating character
+     */
+    private void emitNonStringValue(int entry) {
+        if (entry == 0) return;
+        int start = (index[entry - 1] & ~ESCAPED) + 1;
+        int end = index[entry];
+        while (start < end && isWhitespace(window.get(start))) start++;
+        while (end > start && isWhitespace(window.get(end - 1))) end--;
+        if (start == end) return;
+        switch (window.get(start)) {
+            case 'n':
+                getReceiver().literal(valueName(), contains(start, end, "null") ? nullValue : "");
+                break;
+            case 't':
+                getReceiver().literal(valueName(), contains(start, end, "true") ? "true" : "");
+                break;
+            case 'f':
+                getReceiver().literal(valueName(), contains(start, end, "false") ? "false" : "");
+                break;
+            default:
+                getReceiver().literal(valueName(), isNumber(start, end) ? decodeString(start, end) : "");
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    private boolean contains(int start, int end, String literal) {
+        if (end - start != literal.length()) return false;
+        for (int i = 0; i < literal.length(); i++) {
+            if (window.get(start + i) != literal.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the bytes conform to the JSON number grammar (-?(0|[1-9][0-9]*)(.[0-9]+)?([eE][+-]?[0-9]+)?)
+     */
+    private boolean isNumber(int start, int end) {
+        int i = start;
+        if (window.get(i) == '-') i++;
+        if (i == end) return false;
+        if (window.get(i) == '0') {
+            i++;
+        } else {
+            int digits = i;
+            i = skipDigits(i, end);
+            if (i == digits) return false;
+        }
+        if (i < end && window.get(i) == '.') {
+            int digits = ++i;
+            i = skipDigits(i, end);
+            if (i == digits) return false;
+        }
+        if (i < end && (window.get(i) == 'e' || window.get(i) == 'E')) {
+            i++;
+            if (i < end && (window.get(i) == '+' || window.get(i) == '-')) i++;
+            int digits = i;
+            i = skipDigits(i, end);
+            if (i == digits) return false;
+        }
+        return i == end;
+    }
+
+    private int skipDigits(int i, int end) {
+        while (i < end && window.get(i) >= '0' && window.get(i) <= '9') i++;
+        return i;
+    }
+
+    /**
+     * Decodes the UTF-8 bytes of a string. Escape sequences are resolved only if the string has been marked to
+     * contain any in the first pass.
+     *
+     * @param start Position of first byte
+     * @param end   Position after last byte, possibly marked as escaped
+     * @return Decoded string
+     */
+    private String decodeString(int start, int end) {
+        boolean escaped = (end & ESCAPED) != 0;
+        end &= ~ESCAPED;
+        int length = end - start;
+        if (scratch.length < length) scratch = new byte[Math.max(length, scratch.length * 2)];
+        for (int i = 0; i < length; i++) {
+            scratch[i] = window.get(start + i);
+        }
+        String decoded = new String(scratch, 0, length, StandardCharsets.UTF_8);
+        return escaped ? unescape(decoded) : decoded;
+    }
+
+    private static String unescape(String value) {
+        StringBuilder builder = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c != '\\' || i + 1 == value.length()) {
+                builder.append(c);
+                continue;
+            }
+            c = value.charAt(++i);
+            switch (c) {
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    int unicodeValue = 0;
+                    int unicodeDigits = 0;
+                    while (unicodeDigits < 4 && i + unicodeDigits + 1 < value.length()) {
+                        int digit = Character.digit(value.charAt(i + unicodeDigits + 1), 16);
+                        if (digit < 0) break;
+                        unicodeValue = (unicodeValue << 4) + digit;
+                        unicodeDigits++;
+                    }
+                    if (unicodeDigits == 4) {
+                        builder.append((char) unicodeValue);
+                        i += 4;
+                    } else {
+                        // Malformed sequence is kept as it is
+                        builder.append('\\').append(c);
+                    }
+                    break;
+                default:
+                    builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Gets the name of the value which is about to be emitted: Inside an object it is the last key, inside an array
+     * the name of the array. Keys are decoded on first use.
+     */
+    private String valueName() {
+        if (inArray()) return names[depth - 1];
+        if (key == null) {
+            if ((keyEnd & ESCAPED) == 0) key = NameCache.canonical(window, keyStart, keyEnd);
+            if (key == null) key = NameCache.canonical(decodeString(keyStart, keyEnd));
+        }
+        return key;
+    }
+
+    private boolean inArray() {
+        return depth > 0 && types[depth - 1] == STARTARRAY;
+    }
+
+    private void push(byte type, String name) {
+        if (depth == types.length) {
+            types = Arrays.copyOf(types, depth * 2);
+            names = Arrays.copyOf(names, depth * 2);
+        }
+        types[depth] = type;
+        names[depth] = name;
+        depth++;
+    }
+
+    @Override
+    protected void onResetStream() {
+        depth = 0;
+        valueExpected = false;
+        key = "";
+    }
+}
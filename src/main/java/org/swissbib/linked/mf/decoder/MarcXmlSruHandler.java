@@ -44,18 +44,21 @@ public final class MarcXmlSruHandler extends DefaultXmlPipe<StreamReceiver> {
     private static int recordLevel = 0;
     private String currentTag = "";
     private StringBuilder builder = new StringBuilder();
+    private final StringBuilder fieldName = new StringBuilder();
 
     @Override
     public void startElement(final String uri, final String localName, final String qName, final Attributes attributes)
             throws SAXException {
         if (SUBFIELD.equals(localName)) {
             builder = new StringBuilder();
-            currentTag = attributes.getValue("code");
+            currentTag = NameCache.canonical(attributes.getValue("code"));
         } else if (DATAFIELD.equals(localName)) {
-            getReceiver().startEntity(attributes.getValue("tag") + attributes.getValue("ind1") + attributes.getValue("ind2"));
+            fieldName.setLength(0);
+            fieldName.append(attributes.getValue("tag")).append(attributes.getValue("ind1")).append(attributes.getValue("ind2"));
+            getReceiver().startEntity(NameCache.canonical(fieldName));
         } else if (CONTROLFIELD.equals(localName)) {
             builder = new StringBuilder();
-            currentTag = attributes.getValue("tag");
+            currentTag = NameCache.canonical(attributes.getValue("tag"));
         } else if (RECORD.equals(localName)) {
             if (recordLevel == 1) {
                 getReceiver().startRecord("");
@@ -0,0 +1,88 @@
+package org.swissbib.linked.mf.decoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Bounded table of canonical instances for names of fields, predicates or tags. A corpus usually has only a few
+ * hundred distinct names, which are repeated in every record. Decoders look up names by their characters, so for
+ * names which are already in the table no new string has to be created, and equal names share one instance, which
+ * short-circuits {@code equals} and {@code switch} statements further down the pipe.</p>
+ * <p>The table has a fixed number of slots which are addressed by the hash code of the name. A name which collides
+ * with another one simply replaces it. As strings are immutable, concurrent lookups are safe without locking: In the
+ * worst case a name is created twice.</p>
+ */
+final class NameCache {
+
+    private static final int SIZE = 1 << 12;
+    private static final int MAX_NAME_LENGTH = 256;
+    private static final String[] names = new String[SIZE];
+
+    // Prevents directly instantiating class.
+    private NameCache() {}
+
+    /**
+     * Gets the canonical instance of a name
+     *
+     * @param chars Characters of name
+     * @return Canonical instance (null if chars is null)
+     */
+    static String canonical(CharSequence chars) {
+        if (chars == null) return null;
+        int length = chars.length();
+        if (length > MAX_NAME_LENGTH) return chars.toString();
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + chars.charAt(i);
+        }
+        int slot = slot(hash);
+        String name = names[slot];
+        if (name != null && name.hashCode() == hash && name.contentEquals(chars)) {
+            return name;
+        }
+        name = chars.toString();
+        names[slot] = name;
+        return name;
+    }
+
+    /**
+     * Gets the canonical instance of a name which consists of ASCII characters only
+     *
+     * @param bytes Buffer holding the name
+     * @param start Position of first byte
+     * @param end   Position after last byte
+     * @return Canonical instance or null if the name contains other than ASCII characters
+     */
+    static String canonical(ByteBuffer bytes, int start, int end) {
+        int length = end - start;
+        if (length > MAX_NAME_LENGTH) return null;
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            byte b = bytes.get(i);
+            if (b < 0) return null;
+            hash = 31 * hash + b;
+        }
+        int slot = slot(hash);
+        String name = names[slot];
+        if (name != null && name.hashCode() == hash && name.length() == length && matches(name, bytes, start)) {
+            return name;
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) bytes.get(start + i);
+        }
+        name = new String(chars);
+        names[slot] = name;
+        return name;
+    }
+
+    private static boolean matches(String name, ByteBuffer bytes, int start) {
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != bytes.get(start + i)) return false;
+        }
+        return true;
+    }
+
+    private static int slot(int hash) {
+        return (hash ^ (hash >>> 16)) & (SIZE - 1);
+    }
+}
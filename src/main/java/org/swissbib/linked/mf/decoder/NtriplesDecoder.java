@@ -1,5 +1,7 @@
 package org.swissbib.linked.mf.decoder;
 
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
 import org.metafacture.framework.MetafactureException;
 import org.metafacture.framework.StreamReceiver;
 import org.metafacture.framework.annotations.Description;
@@ -8,14 +10,20 @@ import org.metafacture.framework.annotations.Out;
 import org.metafacture.framework.helpers.DefaultObjectPipe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.swissbib.linked.mf.utils.TermDictionary;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.Reader;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
@@ -32,48 +40,26 @@ public final class NtriplesDecoder extends DefaultObjectPipe<Reader, StreamRecei
     private Boolean unicodeEscapeSeq = true;
     private Boolean keepLanguageTags = true;
     private Boolean keepTypeAnnotations = true;
+    private Boolean flushPerSubject = false;
+    private Boolean groupBySubject = false;
+    private Boolean sortInput = false;
+    private int sortChunkSize = 1000000;
+    private int threads = 1;
     private static final Logger LOG = LoggerFactory.getLogger(NtriplesDecoder.class);
-
-    /**
-     * Converts Unicode escape sequences in strings to regular UTF-8 encoded characters
-     *
-     * @param literal String to be checked for Unicode escape sequences
-     * @return String with converted Unicode escape sequences
-     */
-    private static String toutf8(String literal) {
-        StringBuilder utf8String = new StringBuilder();
-        StringBuilder tempString = new StringBuilder();
-        char lastArtifact = ' ';
-        char secondLastArtifact = ' ';
-        int i = 0;
-        int stringLength = literal.length();
-        boolean unicodeChar = false;
-        while (i < stringLength) {
-            char c = literal.charAt(i);
-            if (unicodeChar) {
-                tempString.append(c);
-                if (tempString.length() >= 4) {
-                    // Converts hexadecimal code represented as String to integer and casts it afterwards to char
-                    c = (char) (int) Integer.valueOf(tempString.toString(), 16);
-                    tempString.setLength(0);
-                    unicodeChar = false;
-                }
-            } else {
-                // Unicode escape sequences are initialized with \\u. So we have to check for such a tuple,
-                // but at the same time have to make sure that this tuple is not escaped either (i.e. a literal \\u).
-                if (secondLastArtifact != '\\' && lastArtifact == '\\' && c == 'u') {
-                    unicodeChar = true;
-                } else {
-                    utf8String.append(lastArtifact);
-                }
-            }
-            secondLastArtifact = lastArtifact;
-            lastArtifact = c;
-            i++;
-            if (i == stringLength) utf8String.append(c);
-        }
-        return utf8String.toString().substring(1);
-    }
+    private static final int EXPECTED_SUBJECTS = 10000000;
+    private static final int LINES_PER_CHUNK = 1 << 14;
+
+    private TermDictionary bnodeLabels;                             // Labels of blank nodes if kept off-heap
+    private final Map<String, Integer> bnodeIds = new HashMap<>();  // Otherwise labels of blank nodes on heap
+    private final List<String> labels = new ArrayList<>();
+    private final List<Element> bnodes = new ArrayList<>();       // Blank nodes indexed by id of label
+    private final List<Element> rootBnodes = new ArrayList<>();
+    private String currentSubject;
+    private String openRecord;
+    private BloomFilter<CharSequence> flushedSubjects;
+    private long recurringSubjects;
+    private BnodeSpill spill;
+    private NtriplesLexer lexer;
 
     @SuppressWarnings("unused")
     public void setUnicodeEscapeSeq(String unicodeEscapeSeq) {
@@ -90,185 +76,447 @@ public final class NtriplesDecoder extends DefaultObjectPipe<Reader, StreamRecei
         this.keepTypeAnnotations = Boolean.valueOf(keepTypeAnnotations);
     }
 
+    /**
+     * Emits the blank node trees of a subject as soon as the subject changes instead of at the end of the input. This
+     * keeps the memory usage bounded, but requires the input to be clustered by subject, with the statements
+     * describing the blank nodes next to the subject which refers to them. Trees which are incomplete when the
+     * subject changes are spilled to disk and resolved tree by tree at the end of the input by means of external
+     * sorts, so they don't count against the memory bound either. Don't combine with {@link #setSortInput(String)},
+     * see there.
+     *
+     * @param flushPerSubject "true", "false"
+     */
+    @SuppressWarnings("unused")
+    public void setFlushPerSubject(String flushPerSubject) {
+        this.flushPerSubject = Boolean.valueOf(flushPerSubject);
+        checkSortedFlushing();
+    }
+
+    /**
+     * Groups consecutive statements with the same subject into one record instead of emitting a record per
+     * statement. Statements with blank nodes are not affected.
+     *
+     * @param groupBySubject "true", "false"
+     */
+    @SuppressWarnings("unused")
+    public void setGroupBySubject(String groupBySubject) {
+        this.groupBySubject = Boolean.valueOf(groupBySubject);
+    }
+
+    /**
+     * Sorts the input by subject before decoding it, so that all statements of a subject are grouped into one
+     * record. Input which exceeds the chunk size is sorted externally by means of temporary files.
+     * <p>
+     * Lines are sorted as a whole, so the descriptions of blank nodes (subjects starting with {@code _:}) end up after
+     * all resources. Combined with {@link #setFlushPerSubject(String)}, every blank node tree is therefore incomplete
+     * when its subject changes and is spilled and resolved at the end of the input, which reads the trees twice more
+     * from disk.
+     *
+     * @param sortInput "true", "false"
+     */
+    @SuppressWarnings("unused")
+    public void setSortInput(String sortInput) {
+        this.sortInput = Boolean.valueOf(sortInput);
+        checkSortedFlushing();
+    }
+
+    private void checkSortedFlushing() {
+        if (sortInput && flushPerSubject) {
+            LOG.warn("Sorted input places blank node descriptions after all resources, so with flushPerSubject all " +
+                    "blank node trees are spilled to disk and resolved at the end of the input");
+        }
+    }
+
+    /**
+     * @param sortChunkSize Maximal number of lines which are sorted in memory, also when resolving spilled blank
+     *                      node trees
+     */
+    @SuppressWarnings("unused")
+    public void setSortChunkSize(String sortChunkSize) {
+        this.sortChunkSize = Integer.parseInt(sortChunkSize);
+    }
+
+    /**
+     * Parses the lines on several threads. The input is split into chunks of lines which are parsed concurrently,
+     * while the statements are processed in the order of the input, so the output doesn't depend on the number of
+     * threads.
+     *
+     * @param threads Number of threads parsing lines (default: 1)
+     */
+    @SuppressWarnings("unused")
+    public void setThreads(String threads) {
+        this.threads = Integer.parseInt(threads);
+    }
+
+    /**
+     * Keeps the labels of blank nodes in a {@link TermDictionary} outside of the Java heap instead of in a map on
+     * the heap. Pays off for input with a large number of blank nodes which are held until the end of the input.
+     *
+     * @param termDictionary "true", "false" (default)
+     */
+    @SuppressWarnings("unused")
+    public void setTermDictionary(String termDictionary) {
+        this.bnodeLabels = Boolean.valueOf(termDictionary) ? new TermDictionary() : null;
+    }
+
     @Override
     public void process(Reader reader) {
 
         BufferedReader lineReader = new BufferedReader(reader, 16777216);
-        Map<String, Element> bnodeMap = new HashMap<>();
-        List<Element> rootBnodes = new ArrayList<>();
+        lexer = newLexer();
 
         try {
-            int i = 0;
-            for (String e = lineReader.readLine(); e != null; e = lineReader.readLine()) {
-                i++;
-                if (!e.startsWith("#")) {
-                    LOG.debug("Processing triple on line {}: {}", i, e);
-                    List<String> statement;
-                    try {
-                        statement = parseLine(e);
-                    } catch (Exception ex) {
-                        LOG.error("Parse error for triple on line {}: {}", i, ex.getClass().getName());
-                        LOG.warn("Skipping triple on line {} because of error", i);
-                        continue;
-                    }
-                    if (isBnode(statement.get(0))) {
-                        if (isBnode(statement.get(2))) {
-                            Element entity = new Element(statement.get(1));
-                            bnodeMap.get(statement.get(0)).addEntity(entity);
-                            bnodeMap.put(statement.get(2), entity);
-                        } else {
-                            Element literal = new Element(statement.get(1));
-                            literal.addValue(statement.get(2));
-                            bnodeMap.get(statement.get(0)).addEntity(literal);
-                        }
-                    } else if (isBnode(statement.get(2))) {
-                        Element elem = new Element(statement.get(1));
-                        bnodeMap.put(statement.get(2), elem);
-                        rootBnodes.add(elem);
-                    } else {
-                        this.getReceiver().startRecord(statement.get(0));
-                        this.getReceiver().literal(statement.get(1),
-                                (unicodeEscapeSeq && statement.get(2).length() > 0)
-                                        ? toutf8(statement.get(2))
-                                        : statement.get(2));
-                        this.getReceiver().endRecord();
-                    }
+            if (sortInput) {
+                try (SortedLineReader sortedReader = new SortedLineReader(lineReader, sortChunkSize)) {
+                    decode(sortedReader::readLine);
                 }
+            } else {
+                decode(lineReader::readLine);
             }
-            for (Element r : rootBnodes) {
-                r.serialise();
+            closeRecord();
+            if (spill != null) {
+                // Remaining trees could refer to spilled ones, so they are resolved together
+                flushBnodes(true);
+                resolveSpilledBnodes();
+            } else {
+                flushBnodes(false);
             }
 
         } catch (IOException var4) {
             throw new MetafactureException(var4);
+        } finally {
+            discardSpill();
         }
 
     }
 
-    private static boolean isBnode(String str) {
-        return str.startsWith("_:");
+    private NtriplesLexer newLexer() {
+        return new NtriplesLexer(unicodeEscapeSeq, keepLanguageTags, keepTypeAnnotations);
+    }
+
+    private void decode(LineSource lines) throws IOException {
+        if (threads > 1) {
+            decodeConcurrently(lines);
+            return;
+        }
+        int i = 0;
+        for (String e = lines.readLine(); e != null; e = lines.readLine()) {
+            if (parseLine(lexer, e, ++i)) {
+                processStatement(lexer.subject(), lexer.predicate(), lexer.object(), lexer.objectIsBnode());
+            }
+        }
     }
 
     /**
-     * Parses a N-triples statement and returns elements (subject, predicate, object) as three-part ArrayList
+     * Reads chunks of lines and hands them over to a pool of threads for parsing. The parsed chunks are processed
+     * in the order of the input, so the assembly of blank node trees and the emitting of records stay on the
+     * calling thread. The number of chunks in flight is bounded to keep memory usage in check.
      *
-     * @param string Statement to be parsed
-     * @return List with subject, predicate and object
+     * @param lines Input
      */
-    private List<String> parseLine(String string) throws MetafactureException {
-
-        List<String> statement = new ArrayList<>();
-
-        final byte NOCTX = 0;
-        final byte INURI = 1;
-        final byte INBNODE = 2;
-        final byte INLITERAL = 3;
-        final byte INIGNOREDCHAR = 4;
-        final byte INDATATYPEURI = 5;
-        final byte AFTERSINGLECARET = 6;
-        final byte INLANGUAGETAG = 7;
-        byte ctx = NOCTX;
-        StringBuilder elem = new StringBuilder();
-
-        Predicate beginOfUri = (char character, byte context) -> character == '<' && context == NOCTX;
-        Predicate endOfUri = (char character, byte context) -> character == '>' && context == INURI;
-        Predicate startOfLiteral = (char character, byte context) -> character == '"' && context == NOCTX;
-        Predicate endOfLiteral = (char character, byte context) -> character == '"' && context == INLITERAL;
-        Predicate startOfBNode = (char character, byte context) -> character == '_' && context == NOCTX;
-        Predicate endOfBNode = (char character, byte context) -> (character == '.' || character == ' ' || character == '\t') && context == INBNODE;
-        Predicate endOfTriple = (char character, byte context) -> character == '.' && context == NOCTX;
-        Predicate escapeChar = (char character, byte context) -> character == 0x005c && context == INLITERAL;
-        Predicate languageTag = (char character, byte context) -> character == 0x0040 && context == NOCTX;
-        Predicate endOfLanguageTag = (char character, byte context) -> (character == '.' || character == ' ' || character == '\t') && context == INLANGUAGETAG;
-        Predicate possibleDatatypeUri = (char character, byte context) -> character == '^' && context == NOCTX;
-        Predicate noDatatypeUri = (char character, byte context) -> character != '^' && context == AFTERSINGLECARET;
-        Predicate datatypeUri = (char character, byte context) -> character == '^' && context == AFTERSINGLECARET;
-        Predicate endOfDatatypeUri = (char character, byte context) -> character == '>' && context == INDATATYPEURI;
-
-        for (char c : string.toCharArray()) {
-
-            if (is(beginOfUri, c, ctx)) {
-                ctx = INURI;
-            } else if (is(endOfUri, c, ctx)) {
-                ctx = NOCTX;
-                statement.add(elem.toString());
-                elem.setLength(0);
-            } else if (is(startOfLiteral, c, ctx)) {
-                ctx = INLITERAL;
-            } else if (is(endOfLiteral, c, ctx)) {
-                ctx = NOCTX;
-                statement.add(elem.toString());
-                elem.setLength(0);
-            } else if (is(startOfBNode, c, ctx)) {
-                ctx = INBNODE;
-                elem.append(c);
-            } else if (is(endOfBNode, c, ctx)) {
-                ctx = NOCTX;
-                statement.add(elem.toString());
-                elem.setLength(0);
-            } else if (is(endOfTriple, c, ctx)) {
-                break;
-            } else if (is(escapeChar, c, ctx)) {
-                ctx = INIGNOREDCHAR;
-            } else if (is(languageTag, c, ctx)){
-                ctx = INLANGUAGETAG;
-                elem.append("##");
-                elem.append(c);
-            } else if (is(possibleDatatypeUri, c, ctx)) {
-                ctx = AFTERSINGLECARET;
-                elem.append("##");
-                elem.append(c);
-            } else if (is(noDatatypeUri, c, ctx)) {
-                elem.setLength(0);
-            } else if (is(datatypeUri, c, ctx)) {
-                ctx = INDATATYPEURI;
-                elem.append(c);
-            } else if (ctx == INIGNOREDCHAR) {
-                if (c == '"') elem.append(c);
-                if (c == 'u') {
-                    elem.append("\\u");
+    private void decodeConcurrently(LineSource lines) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        Deque<Future<ParsedChunk>> pending = new ArrayDeque<>();
+        try {
+            int lineNumber = 0;
+            boolean endOfInput = false;
+            while (!endOfInput || !pending.isEmpty()) {
+                while (!endOfInput && pending.size() < 2 * threads) {
+                    List<String> chunk = new ArrayList<>(LINES_PER_CHUNK);
+                    for (String e = lines.readLine(); e != null; e = lines.readLine()) {
+                        chunk.add(e);
+                        if (chunk.size() == LINES_PER_CHUNK) break;
+                    }
+                    endOfInput = chunk.size() < LINES_PER_CHUNK;
+                    final int firstLine = lineNumber + 1;
+                    lineNumber += chunk.size();
+                    pending.add(workers.submit(() -> new ParsedChunk(chunk, firstLine)));
                 }
-                ctx = INLITERAL;
-            } else if (is(endOfLanguageTag, c, ctx)) {
-                ctx = NOCTX;
-                if (keepLanguageTags) {
-                    statement.set(statement.size() -1, statement.get(statement.size() -1 ) + elem.toString());
+                ParsedChunk parsed = pending.poll().get();
+                for (int i = 0; i < parsed.size; i++) {
+                    processStatement(parsed.terms[3 * i], parsed.terms[3 * i + 1], parsed.terms[3 * i + 2],
+                            parsed.objectIsBnode[i]);
                 }
-                elem.setLength(0);
-            } else if (is(endOfDatatypeUri, c, ctx)) {
-                ctx = NOCTX;
-                elem.append(c);
-                if (keepTypeAnnotations) {
-                    statement.set(statement.size() -1, statement.get(statement.size() -1 ) + elem.toString());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MetafactureException(e);
+        } catch (ExecutionException e) {
+            throw new MetafactureException(e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Parses a line
+     *
+     * @param lexer Lexer to be used
+     * @param e     Line
+     * @param i     Line number
+     * @return True if the line contains a valid statement
+     */
+    private static boolean parseLine(NtriplesLexer lexer, String e, int i) {
+        LOG.debug("Processing triple on line {}: {}", i, e);
+        try {
+            return lexer.parse(e);
+        } catch (Exception ex) {
+            LOG.error("Parse error for triple on line {}: {}", i, ex.getMessage());
+            LOG.warn("Skipping triple on line {} because of error", i);
+            return false;
+        }
+    }
+
+    private void processStatement(String subject, String predicate, String object, boolean objectIsBnode) {
+        if (isBnode(subject) || objectIsBnode) {
+            if (!isBnode(subject)) {
+                if (!subject.equals(openRecord)) closeRecord();
+                if (flushPerSubject) nextSubject(subject);
+            }
+            addBnodeStatement(subject, predicate, object, objectIsBnode);
+        } else {
+            boolean grouped = (groupBySubject || sortInput);
+            if (!grouped || !subject.equals(openRecord)) {
+                closeRecord();
+                if (flushPerSubject) nextSubject(subject);
+                this.getReceiver().startRecord(subject);
+            }
+            this.getReceiver().literal(predicate, object);
+            if (grouped) {
+                openRecord = subject;
+            } else {
+                this.getReceiver().endRecord();
+            }
+        }
+    }
+
+    /**
+     * Ends the record of the current subject if statements are grouped by subject
+     */
+    private void closeRecord() {
+        if (openRecord != null) {
+            this.getReceiver().endRecord();
+            openRecord = null;
+        }
+    }
+
+    /**
+     * Adds a statement with a blank node as subject or object to the blank node trees. Blank nodes which are
+     * described before they are referred to are kept as placeholders.
+     *
+     * @param subject       Subject of statement
+     * @param predicate     Predicate of statement
+     * @param object        Object of statement
+     * @param objectIsBnode True if the object is a blank node
+     */
+    private void addBnodeStatement(String subject, String predicate, String object, boolean objectIsBnode) {
+        if (isBnode(subject)) {
+            Element parent = bnode(subject);
+            parent.described = true;
+            if (objectIsBnode) {
+                parent.addEntity(referBnode(object, predicate));
+            } else {
+                Element literal = new Element(-1);
+                literal.name = predicate;
+                literal.addValue(object);
+                parent.addEntity(literal);
+            }
+        } else {
+            Element root = referBnode(object, predicate);
+            root.subject = subject;
+            rootBnodes.add(root);
+        }
+    }
+
+    private Element referBnode(String bnode, String predicate) {
+        Element elem = bnode(bnode);
+        elem.name = predicate;
+        elem.referenced = true;
+        return elem;
+    }
+
+    /**
+     * Gets a blank node, creating a placeholder if the blank node is unknown so far
+     *
+     * @param label Label of blank node
+     * @return Blank node
+     */
+    private Element bnode(String label) {
+        int id;
+        if (bnodeLabels != null) {
+            id = bnodeLabels.add(label);
+        } else {
+            Integer known = bnodeIds.get(label);
+            id = known != null ? known : labels.size();
+            if (known == null) {
+                bnodeIds.put(label, id);
+                labels.add(label);
+            }
+        }
+        if (id == bnodes.size()) bnodes.add(new Element(id));
+        return bnodes.get(id);
+    }
+
+    /**
+     * Flushes the blank node trees if the subject has changed. Subjects which have already been flushed are
+     * tracked in a Bloom filter, so that input which is not clustered by subject can be detected.
+     *
+     * @param subject Subject of current statement
+     */
+    private void nextSubject(String subject) {
+        if (subject.equals(currentSubject)) return;
+        if (flushedSubjects == null) {
+            flushedSubjects = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), EXPECTED_SUBJECTS, 0.01);
+        }
+        if (currentSubject != null) {
+            flushBnodes(true);
+            flushedSubjects.put(currentSubject);
+        }
+        if (flushedSubjects.mightContain(subject)) {
+            if (recurringSubjects++ == 0) {
+                LOG.warn("Subject {} has probably already been flushed. Is the input clustered by subject?", subject);
+            }
+        }
+        currentSubject = subject;
+    }
+
+    /**
+     * Emits the blank node trees
+     *
+     * @param partial If true, the input has not been read completely and incomplete trees are spilled to disk
+     */
+    private void flushBnodes(boolean partial) {
+        try {
+            for (Element root : rootBnodes) {
+                if (partial && !root.complete()) {
+                    spill(root.subject, root.name, label(root.id), true);
+                    spillDescendants(root);
+                } else {
+                    root.serialise();
+                }
+            }
+            for (Element bnode : bnodes) {
+                if (!bnode.referenced) {
+                    if (partial) {
+                        spillDescendants(bnode);
+                    } else {
+                        LOG.warn("Blank node {} is not referred to by any resource. Skipping it.", label(bnode.id));
+                    }
                 }
-                elem.setLength(0);
-            } else if (ctx == INURI || ctx == INLITERAL || ctx == INBNODE || ctx == INLANGUAGETAG || ctx == INDATATYPEURI) {                                                      // Record content
-                elem.append(c);
             }
+        } catch (IOException e) {
+            throw new MetafactureException(e);
+        }
+        if (bnodeLabels != null) {
+            bnodeLabels.clear();
+        } else {
+            bnodeIds.clear();
+            labels.clear();
+        }
+        bnodes.clear();
+        rootBnodes.clear();
+        if (!partial) {
+            currentSubject = null;
+            if (recurringSubjects > 0) {
+                LOG.warn("{} subjects have probably been flushed several times", recurringSubjects);
+                recurringSubjects = 0;
+            }
+        }
+    }
 
+    private void spillDescendants(Element bnode) throws IOException {
+        String label = label(bnode.id);
+        for (Element e : bnode.elems) {
+            if (e.id >= 0) {
+                spill(label, e.name, label(e.id), true);
+                spillDescendants(e);
+            } else {
+                spill(label, e.name, e.value, false);
+            }
         }
+    }
 
-        if (statement.size() != 3)
-            throw (new MetafactureException("Statement must have exactly three elements: " + string));
+    private String label(int id) {
+        return bnodeLabels != null ? bnodeLabels.term(id) : labels.get(id);
+    }
 
-        return statement;
+    private void spill(String subject, String predicate, String object, boolean objectIsBnode) throws IOException {
+        if (spill == null) spill = new BnodeSpill(sortChunkSize);
+        spill.add(subject, predicate, object, objectIsBnode);
     }
 
-    private boolean is(Predicate p, char c, byte ctx) {
-        return p.check(c, ctx);
+    /**
+     * Emits the spilled blank node trees one by one, so only a single tree is held in memory at a time
+     */
+    private void resolveSpilledBnodes() throws IOException {
+        spill.resolve(new BnodeSpill.TreeReceiver() {
+            @Override
+            public void statement(String subject, String predicate, String object, boolean objectIsBnode) {
+                addBnodeStatement(subject, predicate, object, objectIsBnode);
+            }
+
+            @Override
+            public void endTree() {
+                flushBnodes(false);
+            }
+        });
     }
 
-    interface Predicate {
-        boolean check(char c, byte ctx);
+    /**
+     * Deletes the temporary files of the spilled statements, also if decoding failed
+     */
+    private void discardSpill() {
+        try {
+            if (spill != null) spill.close();
+        } catch (IOException e) {
+            LOG.warn("Can't delete temporary files of spilled blank node trees: {}", e.getMessage());
+        }
+        spill = null;
+    }
+
+    private static boolean isBnode(String str) {
+        return str.startsWith("_:");
+    }
+
+    private interface LineSource {
+        String readLine() throws IOException;
+    }
+
+    /**
+     * Statements of a chunk of lines, parsed on a worker thread
+     */
+    private final class ParsedChunk {
+        final String[] terms;
+        final boolean[] objectIsBnode;
+        int size;
+
+        ParsedChunk(List<String> lines, int firstLine) {
+            terms = new String[3 * lines.size()];
+            objectIsBnode = new boolean[lines.size()];
+            NtriplesLexer chunkLexer = newLexer();
+            int i = firstLine;
+            for (String e : lines) {
+                if (parseLine(chunkLexer, e, i++)) {
+                    terms[3 * size] = chunkLexer.subject();
+                    terms[3 * size + 1] = chunkLexer.predicate();
+                    terms[3 * size + 2] = chunkLexer.object();
+                    objectIsBnode[size++] = chunkLexer.objectIsBnode();
+                }
+            }
+        }
     }
 
     class Element {
         String name;
         List<Element> elems = new ArrayList<>();
         String value;
+        final int id;           // Id of label of blank node (-1 for literals)
+        String subject;         // Resource referring to a root blank node
+        boolean described;      // Blank node is subject of at least one statement
+        boolean referenced;     // Blank node is object of a statement
 
-        Element(String name) {
-            this.name = name;
+        Element(int id) {
+            this.id = id;
         }
 
         void addValue(String val) {
@@ -303,6 +551,18 @@ public final class NtriplesDecoder extends DefaultObjectPipe<Reader, StreamRecei
             this.serialise(true);
         }
 
+        /**
+         * Checks if all blank nodes in the tree have been described
+         */
+        boolean complete() {
+            if (id < 0) return true;
+            if (!described) return false;
+            for (Element e : elems) {
+                if (!e.complete()) return false;
+            }
+            return true;
+        }
+
     }
 
 }
@@ -0,0 +1,343 @@
+package org.swissbib.linked.mf.decoder;
+
+import org.metafacture.framework.MetafactureException;
+
+import java.util.Arrays;
+
+/**
+ * <p>Splits lines of N-Triples into subject, predicate and object. The lexer is driven by a precomputed table which
+ * maps the current state and the class of the next character to the following state and an action, so every
+ * character is handled by a single lookup.</p>
+ * <p>Terms are delimited by positions in the line and only copied once the line has been scanned completely. Terms
+ * without escape sequences are taken over as substrings, the others are unescaped into a reusable buffer. A lexer
+ * instance is not thread-safe.</p>
+ */
+final class NtriplesLexer {
+
+    // Character classes
+    private static final int C_OTHER = 0;
+    private static final int C_WHITESPACE = 1;
+    private static final int C_LT = 2;
+    private static final int C_GT = 3;
+    private static final int C_QUOTE = 4;
+    private static final int C_BACKSLASH = 5;
+    private static final int C_UNDERSCORE = 6;
+    private static final int C_DOT = 7;
+    private static final int C_AT = 8;
+    private static final int C_CARET = 9;
+    private static final int C_HASH = 10;
+    private static final int CLASSES = 11;
+
+    // States
+    private static final int S_BETWEENTERMS = 0;
+    private static final int S_INIRI = 1;
+    private static final int S_INBNODE = 2;
+    private static final int S_INLITERAL = 3;
+    private static final int S_INESCAPESEQUENCE = 4;
+    private static final int S_AFTERLITERAL = 5;
+    private static final int S_INLANGUAGETAG = 6;
+    private static final int S_AFTERSINGLECARET = 7;
+    private static final int S_AFTERDOUBLECARET = 8;
+    private static final int S_INDATATYPEURI = 9;
+    private static final int S_END = 10;
+    private static final int S_ERROR = 11;
+    private static final int STATES = 12;
+
+    // Actions
+    private static final int A_NONE = 0;
+    private static final int A_BEGINTERM = 1;          // Term starts after current character
+    private static final int A_BEGINBNODE = 2;         // Term starts with current character
+    private static final int A_ESCAPE = 3;
+    private static final int A_ENDIRI = 4;
+    private static final int A_ENDBNODE = 5;
+    private static final int A_ENDLITERAL = 6;
+    private static final int A_BEGINANNOTATION = 7;
+    private static final int A_ENDLANGUAGETAG = 8;
+    private static final int A_ENDDATATYPEURI = 9;
+
+    private static final byte[] CHARCLASS = new byte[128];
+    private static final byte[] TRANSITIONS = new byte[STATES * CLASSES];
+
+    static {
+        CHARCLASS[' '] = C_WHITESPACE;
+        CHARCLASS['\t'] = C_WHITESPACE;
+        CHARCLASS['\r'] = C_WHITESPACE;
+        CHARCLASS['<'] = C_LT;
+        CHARCLASS['>'] = C_GT;
+        CHARCLASS['"'] = C_QUOTE;
+        CHARCLASS['\\'] = C_BACKSLASH;
+        CHARCLASS['_'] = C_UNDERSCORE;
+        CHARCLASS['.'] = C_DOT;
+        CHARCLASS['@'] = C_AT;
+        CHARCLASS['^'] = C_CARET;
+        CHARCLASS['#'] = C_HASH;
+
+        Arrays.fill(TRANSITIONS, (byte) S_ERROR);
+
+        on(S_BETWEENTERMS, C_WHITESPACE, S_BETWEENTERMS, A_NONE);
+        on(S_BETWEENTERMS, C_LT, S_INIRI, A_BEGINTERM);
+        on(S_BETWEENTERMS, C_QUOTE, S_INLITERAL, A_BEGINTERM);
+        on(S_BETWEENTERMS, C_UNDERSCORE, S_INBNODE, A_BEGINBNODE);
+        on(S_BETWEENTERMS, C_DOT, S_END, A_NONE);
+
+        all(S_INIRI, S_INIRI, A_NONE);
+        on(S_INIRI, C_BACKSLASH, S_INIRI, A_ESCAPE);
+        on(S_INIRI, C_GT, S_BETWEENTERMS, A_ENDIRI);
+
+        all(S_INBNODE, S_INBNODE, A_NONE);
+        on(S_INBNODE, C_WHITESPACE, S_BETWEENTERMS, A_ENDBNODE);
+        on(S_INBNODE, C_DOT, S_END, A_ENDBNODE);
+
+        all(S_INLITERAL, S_INLITERAL, A_NONE);
+        on(S_INLITERAL, C_BACKSLASH, S_INESCAPESEQUENCE, A_ESCAPE);
+        on(S_INLITERAL, C_QUOTE, S_AFTERLITERAL, A_ENDLITERAL);
+        all(S_INESCAPESEQUENCE, S_INLITERAL, A_NONE);
+
+        on(S_AFTERLITERAL, C_WHITESPACE, S_BETWEENTERMS, A_NONE);
+        on(S_AFTERLITERAL, C_DOT, S_END, A_NONE);
+        on(S_AFTERLITERAL, C_AT, S_INLANGUAGETAG, A_BEGINANNOTATION);
+        on(S_AFTERLITERAL, C_CARET, S_AFTERSINGLECARET, A_BEGINANNOTATION);
+
+        all(S_INLANGUAGETAG, S_INLANGUAGETAG, A_NONE);
+        on(S_INLANGUAGETAG, C_WHITESPACE, S_BETWEENTERMS, A_ENDLANGUAGETAG);
+        on(S_INLANGUAGETAG, C_DOT, S_END, A_ENDLANGUAGETAG);
+
+        on(S_AFTERSINGLECARET, C_CARET, S_AFTERDOUBLECARET, A_NONE);
+        on(S_AFTERDOUBLECARET, C_LT, S_INDATATYPEURI, A_NONE);
+        all(S_INDATATYPEURI, S_INDATATYPEURI, A_NONE);
+        on(S_INDATATYPEURI, C_GT, S_BETWEENTERMS, A_ENDDATATYPEURI);
+    }
+
+    private static void on(int state, int charClass, int nextState, int action) {
+        TRANSITIONS[state * CLASSES + charClass] = (byte) (action << 4 | nextState);
+    }
+
+    private static void all(int state, int nextState, int action) {
+        for (int c = 0; c < CLASSES; c++) {
+            on(state, c, nextState, action);
+        }
+    }
+
+    private final boolean unescapeUnicode;
+    private final boolean keepLanguageTags;
+    private final boolean keepTypeAnnotations;
+    private final StringBuilder buffer = new StringBuilder();
+
+    private String subject;
+    private String predicate;
+    private String object;
+    private boolean objectIsBnode;
+
+    // Positions of the current term and the annotation of a literal
+    private int terms;
+    private int termStart;
+    private boolean escaped;
+    private int annotationStart;
+    private int annotationEnd;
+
+    /**
+     * @param unescapeUnicode     Converts \\u and \\U escape sequences to characters
+     * @param keepLanguageTags    Appends language tags to literals, separated by ##
+     * @param keepTypeAnnotations Appends datatype URIs to literals, separated by ##
+     */
+    NtriplesLexer(boolean unescapeUnicode, boolean keepLanguageTags, boolean keepTypeAnnotations) {
+        this.unescapeUnicode = unescapeUnicode;
+        this.keepLanguageTags = keepLanguageTags;
+        this.keepTypeAnnotations = keepTypeAnnotations;
+    }
+
+    /**
+     * Parses a line
+     *
+     * @param line Line of N-Triples
+     * @return True if the line contains a statement, false if it is empty or a comment
+     * @throws MetafactureException if the line is not a valid statement
+     */
+    boolean parse(String line) {
+        terms = 0;
+        annotationStart = -1;
+        int literalStart = -1;
+        int literalEnd = -1;
+        boolean literalEscaped = false;
+        int state = S_BETWEENTERMS;
+        int length = line.length();
+        for (int i = 0; i < length && state != S_END; i++) {
+            char c = line.charAt(i);
+            if (state == S_BETWEENTERMS && terms == 0 && c == '#') return false;
+            int transition = TRANSITIONS[state * CLASSES + (c < 128 ? CHARCLASS[c] : C_OTHER)] & 0xff;
+            state = transition & 0xf;
+            switch (transition >>> 4) {
+                case A_NONE:
+                    break;
+                case A_BEGINTERM:
+                    termStart = i + 1;
+                    escaped = false;
+                    break;
+                case A_BEGINBNODE:
+                    termStart = i;
+                    break;
+                case A_ESCAPE:
+                    escaped = true;
+                    break;
+                case A_ENDIRI:
+                    addTerm(termStart, i, escaped ? unescape(line, termStart, i) : null, false, line);
+                    break;
+                case A_ENDBNODE:
+                    addTerm(termStart, i, null, true, line);
+                    break;
+                case A_ENDLITERAL:
+                    // The literal is assembled at the end of the line, as it might have an annotation
+                    if (terms != 2) throw invalid(line);
+                    literalStart = termStart;
+                    literalEnd = i;
+                    literalEscaped = escaped;
+                    terms++;
+                    break;
+                case A_BEGINANNOTATION:
+                    annotationStart = i;
+                    break;
+                case A_ENDLANGUAGETAG:
+                    annotationEnd = keepLanguageTags ? i : -1;
+                    break;
+                case A_ENDDATATYPEURI:
+                    annotationEnd = keepTypeAnnotations ? i + 1 : -1;
+                    break;
+            }
+            if (state == S_ERROR) throw invalid(line);
+        }
+        if (state == S_BETWEENTERMS && terms == 0) return false;
+        if (state != S_END || terms != 3) throw invalid(line);
+        if (literalStart >= 0) {
+            object = literal(line, literalStart, literalEnd, literalEscaped);
+            objectIsBnode = false;
+        }
+        return true;
+    }
+
+    String subject() {
+        return subject;
+    }
+
+    String predicate() {
+        return predicate;
+    }
+
+    String object() {
+        return object;
+    }
+
+    /**
+     * @return True if the object of the statement is a blank node
+     */
+    boolean objectIsBnode() {
+        return objectIsBnode;
+    }
+
+    private void addTerm(int start, int end, String unescaped, boolean bnode, String line) {
+        switch (terms++) {
+            case 0:
+                subject = unescaped != null ? unescaped : line.substring(start, end);
+                break;
+            case 1:
+                // Predicates are repeated over and over, so their canonical instance is used
+                if (unescaped == null) {
+                    buffer.setLength(0);
+                    buffer.append(line, start, end);
+                    predicate = NameCache.canonical(buffer);
+                } else {
+                    predicate = NameCache.canonical(unescaped);
+                }
+                break;
+            case 2:
+                object = unescaped != null ? unescaped : line.substring(start, end);
+                objectIsBnode = bnode;
+                break;
+            default:
+                throw invalid(line);
+        }
+    }
+
+    private String literal(String line, int start, int end, boolean escaped) {
+        boolean annotated = annotationStart >= 0 && annotationEnd >= 0;
+        if (!escaped && !annotated) return line.substring(start, end);
+        buffer.setLength(0);
+        if (escaped) {
+            appendUnescaped(line, start, end);
+        } else {
+            buffer.append(line, start, end);
+        }
+        if (annotated) {
+            buffer.append("##").append(line, annotationStart, annotationEnd);
+        }
+        return buffer.toString();
+    }
+
+    private String unescape(String line, int start, int end) {
+        buffer.setLength(0);
+        appendUnescaped(line, start, end);
+        return buffer.toString();
+    }
+
+    private void appendUnescaped(String line, int start, int end) {
+        int i = start;
+        while (i < end) {
+            char c = line.charAt(i++);
+            if (c != '\\') {
+                buffer.append(c);
+                continue;
+            }
+            if (i == end) throw invalid(line);
+            char e = line.charAt(i++);
+            switch (e) {
+                case 't':
+                    buffer.append('\t');
+                    break;
+                case 'b':
+                    buffer.append('\b');
+                    break;
+                case 'n':
+                    buffer.append('\n');
+                    break;
+                case 'r':
+                    buffer.append('\r');
+                    break;
+                case 'f':
+                    buffer.append('\f');
+                    break;
+                case '"':
+                case '\'':
+                case '\\':
+                    buffer.append(e);
+                    break;
+                case 'u':
+                case 'U':
+                    int digits = e == 'u' ? 4 : 8;
+                    if (i + digits > end) throw invalid(line);
+                    if (unescapeUnicode) {
+                        buffer.appendCodePoint(hex(line, i, i + digits));
+                    } else {
+                        buffer.append(line, i - 2, i + digits);
+                    }
+                    i += digits;
+                    break;
+                default:
+                    throw invalid(line);
+            }
+        }
+    }
+
+    private static int hex(String line, int start, int end) {
+        int codePoint = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(line.charAt(i), 16);
+            if (digit < 0) throw invalid(line);
+            codePoint = codePoint << 4 | digit;
+        }
+        if (!Character.isValidCodePoint(codePoint)) throw invalid(line);
+        return codePoint;
+    }
+
+    private static MetafactureException invalid(String line) {
+        return new MetafactureException("Invalid statement: " + line);
+    }
+}
@@ -0,0 +1,135 @@
+package org.swissbib.linked.mf.decoder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * <p>Reads the lines of N-Triples input in lexicographical order, so that statements with the same subject are
+ * adjacent. Leading whitespace is insignificant in N-Triples and is removed before sorting. As whole lines are
+ * compared, statements with a blank node as subject ({@code _:}) follow all statements with a resource as subject.</p>
+ * <p>Input which doesn't fit into a single chunk is sorted externally: Each chunk is sorted in memory and written to a
+ * temporary file, and the files are merged afterwards.</p>
+ */
+final class SortedLineReader implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SortedLineReader.class);
+
+    private final List<Path> runFiles = new ArrayList<>();
+    private final PriorityQueue<Run> runs = new PriorityQueue<>();
+    private Iterator<String> lines;
+
+    /**
+     * Reads and sorts the input completely
+     *
+     * @param reader    Input
+     * @param chunkSize Maximal number of lines sorted in memory
+     */
+    SortedLineReader(BufferedReader reader, int chunkSize) throws IOException {
+        List<String> chunk = new ArrayList<>();
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                chunk.add(stripLeadingWhitespace(line));
+                if (chunk.size() >= chunkSize) {
+                    writeRun(chunk);
+                    chunk.clear();
+                }
+            }
+            Collections.sort(chunk);
+            if (runFiles.isEmpty()) {
+                lines = chunk.iterator();
+                return;
+            }
+            if (!chunk.isEmpty()) writeRun(chunk);
+            LOG.debug("Merging {} sorted runs", runFiles.size());
+            for (Path runFile : runFiles) {
+                Run run = new Run(Files.newBufferedReader(runFile, StandardCharsets.UTF_8));
+                if (run.advance()) runs.add(run);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the next line in sort order
+     *
+     * @return Line or null if all lines have been read
+     */
+    String readLine() throws IOException {
+        if (lines != null) {
+            return lines.hasNext() ? lines.next() : null;
+        }
+        Run run = runs.poll();
+        if (run == null) return null;
+        String line = run.line;
+        if (run.advance()) {
+            runs.add(run);
+        } else {
+            run.reader.close();
+        }
+        return line;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Run run : runs) {
+            run.reader.close();
+        }
+        runs.clear();
+        for (Path runFile : runFiles) {
+            Files.deleteIfExists(runFile);
+        }
+        runFiles.clear();
+    }
+
+    private void writeRun(List<String> chunk) throws IOException {
+        Collections.sort(chunk);
+        Path runFile = Files.createTempFile("ntriples-sort", ".nt");
+        runFiles.add(runFile);
+        try (BufferedWriter writer = Files.newBufferedWriter(runFile, StandardCharsets.UTF_8)) {
+            for (String line : chunk) {
+                writer.write(line);
+                writer.newLine();
+            }
+        }
+    }
+
+    private static String stripLeadingWhitespace(String line) {
+        int i = 0;
+        while (i < line.length() && (line.charAt(i) == ' ' || line.charAt(i) == '\t')) i++;
+        return i == 0 ? line : line.substring(i);
+    }
+
+    private static final class Run implements Comparable<Run> {
+        private final BufferedReader reader;
+        private String line;
+
+        private Run(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        private boolean advance() throws IOException {
+            line = reader.readLine();
+            return line != null;
+        }
+
+        @Override
+        public int compareTo(Run other) {
+            return line.compareTo(other.line);
+        }
+    }
+}
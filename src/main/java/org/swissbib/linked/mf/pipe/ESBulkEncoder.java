@@ -1,7 +1,12 @@
 package org.swissbib.linked.mf.pipe;
 
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.google.common.hash.Hashing;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.metafacture.framework.MetafactureException;
 import org.metafacture.framework.ObjectReceiver;
 import org.metafacture.framework.StreamReceiver;
 import org.metafacture.framework.annotations.Description;
@@ -10,34 +15,83 @@ import org.metafacture.framework.annotations.Out;
 import org.metafacture.framework.helpers.DefaultStreamPipe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.swissbib.linked.mf.utils.FingerprintTable;
+import org.swissbib.linked.mf.utils.Utf8Buffer;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 
 /**
- * Serialises an object as JSON-LD.
+ * Serialises an object as JSON-LD. The JSON tree of a record is serialised once into a reusable UTF-8 buffer, which
+ * is emitted either as string or as byte array.
+ * <p>
+ * Optionally, the encoder compiles the layout of the records into a plan, which states for every key whether it holds
+ * values, an object or an array of objects. Records fitting the plan are serialised straight through it without
+ * building a tree of tokens. Records with unexpected keys are replayed through the generic tree and extend the plan.
+ * <p>
+ * The bulk action can be chosen per record by a literal: Besides indexing the whole document, the document can be
+ * merged into an existing one (update), merged or indexed if it doesn't exist yet (upsert) or deleted. Records whose
+ * document hasn't changed since the last run can be skipped, for which a fingerprint of every document is kept.
+ * <p>
+ * If an Elasticsearch mapping is given, values of fields mapped as numbers or booleans are emitted as native JSON
+ * numbers and booleans, and missing values of such fields and of date fields as null.
+ * <p>
+ * In SMILE format, the bulk action and the document are written to SMILE straight from the tree of the record, each
+ * followed by the SMILE stream separator, and emitted as byte array.
  *
  * @author Sebastian Schüpbach, project swissbib, Basel
  */
 @Description("Serialises an object as JSON-LD")
 @In(StreamReceiver.class)
-@Out(String.class)
-public final class ESBulkEncoder extends DefaultStreamPipe<ObjectReceiver<String>> {
+@Out(Object.class)
+public final class ESBulkEncoder extends DefaultStreamPipe<ObjectReceiver<Object>> {
 
     private static final char COMMA = ',';      // Comma transition (e.g. between value and parent)
-    private static final String NONE = "";        // No transition
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
     private static final byte BNODE = 0;        // Node without key
     private static final byte OBJECT = 1;
     private static final byte ARRAY = 2;
     private static final byte KEY = 3;        // Equals literal ""<Name>""
     private static final byte VALUE = 4;        // Equals literal ""<Name>""
+    private static final byte NULL = -1;        // Value serialised as null
+    private static final String INDEX = "index";
+    private static final String UPDATE = "update";
+    private static final String UPSERT = "upsert";
+    private static final String DELETE = "delete";
+    private static final String START_ENTITY = "startEntity";
+    private static final String END_ENTITY = "endEntity";
+    private static final String LITERAL = "literal";
+    /**
+     * Suffix of the file holding the fingerprints of the current run until they are committed
+     */
+    public static final String PENDING_SUFFIX = ".pending";
     private final static Logger LOG = LoggerFactory.getLogger(ESBulkEncoder.class);
-    private Multimap<JsonToken, JsonToken> ctxRegistry;         // Registers root parent of every parent
     private boolean makeChildNode;                              // Set next key as child node of current node
     private JsonToken node;                                     // Current node
     private JsonToken rootNode;                                 // Current root node
-    private String outputString = "";
+    private String id;                                          // Id of current record
+    private final Utf8Buffer output = new Utf8Buffer(1024 * 64);
+    private boolean outputBytes = false;
 
     private boolean header = true;     // Should bulk-header be printed?
     private boolean escapeChars = true;     // Should prohibited characters in JSON string be escaped?
@@ -45,6 +99,31 @@ public final class ESBulkEncoder extends DefaultStreamPipe<ObjectReceiver<String
     private String index;                                       // Index of record
     private boolean avoidMergers = false;
 
+    private XContentType format = XContentType.JSON;
+    private final ByteArrayOutputStream binaryOutput = new ByteArrayOutputStream(1024 * 16);
+    private final SmileFactory smileFactory = new SmileFactory();
+
+    private String actionLiteral;                               // Name of literal holding the bulk action
+    private String action;                                      // Bulk action of current record
+    private String routingLiteral;                              // Name of literal holding the routing value
+    private String routing;                                     // Routing value of current record
+    private int entityDepth;
+    private String fingerprintFile;
+    private FingerprintTable fingerprints;                      // Fingerprints of documents by record id
+
+    private String mappingFile;
+    private MappedField mapping;                                // Root of mapped fields, null if there is no mapping
+
+    private boolean usePlan = false;
+    private boolean planning;                                   // Current record is serialised along the plan
+    private final PlanNode plan = new PlanNode(null, PlanNode.OBJECT);
+    private PlanNode[] planStack = new PlanNode[16];            // Plan nodes of open entities
+    private int planDepth;
+    private int recordNumber;                                   // Marks state of plan nodes belonging to current record
+    private int elementNumber;                                  // Marks keys set in current element of object array
+    private boolean planMissed;                                 // Current record doesn't fit plan
+    private final List<String> loggedEvents = new ArrayList<>(); // Events of current record (type, name, value)
+
     /**
      * Should header be created?
      *
@@ -66,7 +145,8 @@ public final class ESBulkEncoder extends DefaultStreamPipe<ObjectReceiver<String
     }
 
     /**
-     * Sets index of record
+     * Sets index of record. Without index, the bulk actions don't name an index, so index-esbulk can direct them,
+     * e.g. to a freshly created index when rebuilding.
      *
      * @param index Index of record
      */
@@ -89,37 +169,378 @@ public final class ESBulkEncoder extends DefaultStreamPipe<ObjectReceiver<String
         this.avoidMergers = Boolean.parseBoolean(avoidMergers);
     }
 
+    /**
+     * Emits records as UTF-8 encoded byte arrays instead of strings, which can be handed over to index-esbulk without
+     * being encoded again
+     *
+     * @param outputBytes true, false
+     */
+    public void setOutputBytes(String outputBytes) {
+        this.outputBytes = Boolean.parseBoolean(outputBytes);
+        LOG.debug("Settings - Output bytes: {}", outputBytes);
+    }
+
+    /**
+     * Sets the format of the bulk payload. SMILE documents are smaller on the wire and cheaper to parse for
+     * Elasticsearch, and repeated field names are shared within a document. SMILE is always emitted as byte array.
+     * CBOR isn't supported, as Elasticsearch can't split bulk requests in CBOR.
+     *
+     * @param format json, smile
+     */
+    public void setFormat(String format) {
+        switch (format.toLowerCase()) {
+            case "json":
+                this.format = XContentType.JSON;
+                break;
+            case "smile":
+                this.format = XContentType.SMILE;
+                break;
+            default:
+                throw new IllegalArgumentException("Format " + format + " not supported for bulk requests");
+        }
+        LOG.debug("Settings - Set format: {}", format);
+    }
+
+    /**
+     * Sets the name of the literal on record level which holds the bulk action of a record: index (default), update
+     * (partial document), upsert (partial document, indexed if the document doesn't exist) or delete. The literal
+     * itself isn't part of the document.
+     *
+     * @param actionLiteral Name of literal
+     */
+    public void setActionLiteral(String actionLiteral) {
+        this.actionLiteral = actionLiteral;
+        LOG.debug("Settings - Set name of literal holding bulk action: {}", actionLiteral);
+    }
+
+    /**
+     * Sets the name of the literal on record level which holds the routing value of a record. Documents with the same
+     * routing value are stored in the same shard, e.g. items along with their bibliographic resource. The literal
+     * itself isn't part of the document.
+     *
+     * @param routingLiteral Name of literal
+     */
+    public void setRoutingLiteral(String routingLiteral) {
+        this.routingLiteral = routingLiteral;
+        LOG.debug("Settings - Set name of literal holding routing value: {}", routingLiteral);
+    }
+
+    /**
+     * Sets path to a file which keeps the fingerprints of the documents between runs. Records whose document is
+     * unchanged since the last run are skipped. The fingerprints of the current run are written to a pending file
+     * (path with suffix .pending) when the stream is closed. They replace the fingerprints of the last run only once
+     * index-esbulk, given the same file, has confirmed that all records were indexed; otherwise, the documents are
+     * sent again in the next run.
+     *
+     * @param fingerprintFile Path to file
+     */
+    public void setFingerprintFile(String fingerprintFile) {
+        this.fingerprintFile = fingerprintFile;
+        LOG.debug("Settings - Set file of document fingerprints: {}", fingerprintFile);
+    }
+
+    /**
+     * Sets path to an Elasticsearch mapping in JSON. The mapping can consist of the properties, of the mapping of one
+     * or several types or of a whole index definition; in the latter cases, the mapping of the configured type is used.
+     *
+     * @param mappingFile Path to mapping
+     */
+    public void setMapping(String mappingFile) {
+        this.mappingFile = mappingFile;
+        LOG.debug("Settings - Set mapping: {}", mappingFile);
+    }
+
+    /**
+     * Compiles the layout of the records into a plan and serialises records fitting the plan without building a
+     * tree. As an encoder handles records of one type, the plan is learned from the first records and converges
+     * quickly. Keys are ordered by their first occurrence in the plan instead of in the record. As the plan holds
+     * serialised JSON, it isn't used in SMILE format.
+     *
+     * @param usePlan true, false
+     */
+    public void setUsePlan(String usePlan) {
+        this.usePlan = Boolean.parseBoolean(usePlan);
+        LOG.debug("Settings - Use compiled plan: {}", usePlan);
+    }
+
     @Override
     public void startRecord(String id) {
         LOG.debug("Parsing record {}", id);
-        ctxRegistry = HashMultimap.create();
-        node = new JsonToken(BNODE, null, null);
-        rootNode = node;
-        makeChildNode = true;
-        outputString = (header) ? "{\"index\":{\"_type\":\"" + type + "\",\"_index\":\"" +
-                index + "\",\"_id\":\"" + id + "\"}}\n" :
-                "";
+        this.id = id;
+        if (mappingFile != null && mapping == null) loadMapping();
+        if (fingerprintFile != null && fingerprints == null) loadFingerprints();
+        action = INDEX;
+        routing = null;
+        entityDepth = 0;
+        planning = usePlan && format == XContentType.JSON;
+        if (planning) {
+            recordNumber++;
+            planMissed = false;
+            planStack[0] = plan;
+            planDepth = 1;
+            loggedEvents.clear();
+        } else {
+            startTree();
+        }
     }
 
     @Override
     public void endRecord() {
-        if (rootNode != null) {
+        boolean planned = planning && !planMissed;
+        if (format == XContentType.SMILE) {
+            if (rootNode != null) writeSmile();
+        } else if (rootNode != null || planned) {
             LOG.debug("Serializing record to JSON-LD");
-            outputString += "{" + buildJsonString((byte) -1, rootNode) + "}\n";
+            output.reset();
+            if (header) {
+                output.append("{\"").append(action == UPSERT ? UPDATE : action)
+                        .append("\":{\"_type\":\"").append(String.valueOf(type));
+                if (index != null) output.append("\",\"_index\":\"").append(index);
+                output.append("\",\"_id\":\"").append(String.valueOf(id)).appendAscii('"');
+                if (routing != null) {
+                    output.append(",\"_routing\":");
+                    appendString(output, routing);
+                }
+                output.append("}}\n");
+            }
+            if (action == DELETE) {
+                if (!header) {
+                    // Deletions can't be expressed without header. The fingerprint is kept, as nothing is deleted
+                    LOG.warn("Dropping deletion of record {}, as bulk header is disabled", id);
+                    return;
+                }
+                if (fingerprints != null) fingerprints.remove(fingerprintKey());
+            } else {
+                if (action != INDEX) output.append("{\"doc\":");
+                int documentStart = output.length();
+                output.appendAscii('{');
+                if (planned) {
+                    buildJson(plan);
+                } else {
+                    buildJson((byte) -1, rootNode);
+                    if (planning) learn(rootNode, plan);
+                }
+                output.appendAscii('}');
+                if (fingerprints != null && !fingerprints.update(fingerprintKey(), Hashing.murmur3_128()
+                        .hashBytes(output.array(), documentStart, output.length() - documentStart).asLong())) {
+                    LOG.trace("Skipping unchanged record {}", id);
+                    return;
+                }
+                if (action == UPSERT) output.append(",\"doc_as_upsert\":true");
+                if (action != INDEX) output.appendAscii('}');
+                output.appendAscii('\n');
+            }
             LOG.trace("Sending record to {}", getReceiver().getClass());
-            getReceiver().process(outputString);
+            getReceiver().process(outputBytes ? output.toByteArray() : output.toString());
+        }
+    }
+
+    /**
+     * Writes bulk action and document in SMILE and sends them down the pipe. Every part starts with its own SMILE
+     * header, as Elasticsearch parses them separately, so a generator is created per part; the factory recycles the
+     * buffers of its generators.
+     */
+    private void writeSmile() {
+        binaryOutput.reset();
+        byte separator = XContentType.SMILE.xContent().streamSeparator();
+        byte[] bytes;
+        int documentStart;
+        try {
+            if (header) {
+                try (JsonGenerator generator = smileFactory.createGenerator(binaryOutput)) {
+                    generator.writeStartObject();
+                    generator.writeObjectFieldStart(action == UPSERT ? UPDATE : action);
+                    generator.writeStringField("_type", String.valueOf(type));
+                    if (index != null) generator.writeStringField("_index", index);
+                    generator.writeStringField("_id", String.valueOf(id));
+                    if (routing != null) generator.writeStringField("_routing", routing);
+                    generator.writeEndObject();
+                    generator.writeEndObject();
+                }
+                binaryOutput.write(separator);
+            }
+            documentStart = binaryOutput.size();
+            if (action == DELETE) {
+                if (!header) {
+                    // Deletions can't be expressed without header. The fingerprint is kept, as nothing is deleted
+                    LOG.warn("Dropping deletion of record {}, as bulk header is disabled", id);
+                    return;
+                }
+                if (fingerprints != null) fingerprints.remove(fingerprintKey());
+            } else {
+                try (JsonGenerator generator = smileFactory.createGenerator(binaryOutput)) {
+                    generator.writeStartObject();
+                    if (action != INDEX) generator.writeObjectFieldStart("doc");
+                    writeSmile(generator, rootNode);
+                    if (action != INDEX) generator.writeEndObject();
+                    if (action == UPSERT) generator.writeBooleanField("doc_as_upsert", true);
+                    generator.writeEndObject();
+                }
+                binaryOutput.write(separator);
+            }
+            bytes = binaryOutput.toByteArray();
+        } catch (IOException e) {
+            throw new MetafactureException("Can't write record " + id + " in SMILE", e);
+        }
+        if (action != DELETE && fingerprints != null && !fingerprints.update(fingerprintKey(), Hashing.murmur3_128()
+                .hashBytes(bytes, documentStart, bytes.length - documentStart).asLong())) {
+            LOG.trace("Skipping unchanged record {}", id);
+            return;
+        }
+        LOG.trace("Sending record to {}", getReceiver().getClass());
+        getReceiver().process(bytes);
+    }
+
+    /**
+     * Writes the descendants of a JSON token in SMILE, with the same layout as the JSON serialisation
+     */
+    private void writeSmile(JsonGenerator generator, JsonToken jt) throws IOException {
+        for (JsonToken child : jt.getChildren()) {
+            switch (child.getType()) {
+                case KEY:
+                    generator.writeFieldName(child.getName());
+                    if (child.getParentheses() == OBJECT) {
+                        generator.writeStartObject();
+                        writeSmile(generator, child);
+                        generator.writeEndObject();
+                    } else if (child.getParentheses() == ARRAY) {
+                        generator.writeStartArray();
+                        writeSmile(generator, child);
+                        generator.writeEndArray();
+                    } else {
+                        writeSmile(generator, child);
+                    }
+                    break;
+                case BNODE:
+                    generator.writeStartObject();
+                    writeSmile(generator, child);
+                    generator.writeEndObject();
+                    break;
+                case VALUE:
+                    writeValue(generator, child.getName(), jt.field);
+                    break;
+            }
+        }
+    }
+
+    private long fingerprintKey() {
+        return Hashing.murmur3_128().hashString(String.valueOf(id), StandardCharsets.UTF_8).asLong();
+    }
+
+    /**
+     * Reads the fingerprints of the last run, if there was one
+     */
+    private void loadFingerprints() {
+        File file = new File(fingerprintFile);
+        if (!file.exists()) {
+            fingerprints = new FingerprintTable();
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file))))) {
+            fingerprints = FingerprintTable.readFrom(in);
+        } catch (IOException e) {
+            throw new MetafactureException("Can't read fingerprints from " + fingerprintFile, e);
         }
+        LOG.info("Loaded {} document fingerprints from {}", fingerprints.size(), fingerprintFile);
+    }
+
+    /**
+     * Writes the fingerprints to the pending file, which is committed by index-esbulk after successful indexing
+     */
+    private void saveFingerprints() {
+        File file = new File(fingerprintFile + PENDING_SUFFIX);
+        File tmp = new File(fingerprintFile + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new GZIPOutputStream(new FileOutputStream(tmp))))) {
+                fingerprints.writeTo(out);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new MetafactureException("Can't write fingerprints to " + fingerprintFile, e);
+        }
+        LOG.info("Saved {} document fingerprints to {}", fingerprints.size(), file);
+    }
+
+    @Override
+    protected void onCloseStream() {
+        if (fingerprints != null) saveFingerprints();
     }
 
     @Override
     public void startEntity(String name) {
+        entityDepth++;
+        if (planning && !planMissed) {
+            logEvent(START_ENTITY, name, null);
+            if (!planStartEntity(name)) fallBack();
+        } else {
+            startTreeEntity(name);
+        }
+    }
+
+    @Override
+    public void endEntity() {
+        entityDepth--;
+        if (planning && !planMissed) {
+            logEvent(END_ENTITY, null, null);
+            if (!planEndEntity()) fallBack();
+        } else {
+            endTreeEntity();
+        }
+    }
+
+    @Override
+    public void literal(String name, String value) {
+        if (entityDepth == 0 && name.equals(actionLiteral)) {
+            setAction(value);
+            return;
+        }
+        if (entityDepth == 0 && name.equals(routingLiteral)) {
+            routing = value;
+            return;
+        }
+        if (planning && !planMissed) {
+            logEvent(LITERAL, name, value);
+            if (!planLiteral(name, value)) fallBack();
+        } else {
+            treeLiteral(name, value);
+        }
+    }
+
+    private void setAction(String value) {
+        switch (String.valueOf(value)) {
+            case INDEX:
+                action = INDEX;
+                break;
+            case UPDATE:
+                action = UPDATE;
+                break;
+            case UPSERT:
+                action = UPSERT;
+                break;
+            case DELETE:
+                action = DELETE;
+                break;
+            default:
+                LOG.warn("Unknown bulk action {} in record {}, indexing record", value, id);
+                action = INDEX;
+        }
+    }
+
+    private void startTree() {
+        node = new JsonToken(BNODE, null, null);
+        rootNode = node;
+        makeChildNode = true;
+    }
+
+    private void startTreeEntity(String name) {
         buildKey(name);
         makeChildNode = true;
         if (name.endsWith("{}") || avoidMergers) node = new JsonToken(BNODE, null, getParentNode());
     }
 
-    @Override
-    public void endEntity() {
+    private void endTreeEntity() {
         if (node.getChildren().size() == 0) {
             new JsonToken(VALUE, "", node);
             LOG.debug("Entity {} does not have a child node. Creating one with empty name (preventing key with no value.",
@@ -129,45 +550,199 @@ public final class ESBulkEncoder extends DefaultStreamPipe<ObjectReceiver<String
         if (node.getType() == BNODE) node = node.getParent();
     }
 
-    @Override
-    public void literal(String name, String value) {
+    /**
+     * Reads the mapped fields of the configured type from the mapping file
+     */
+    @SuppressWarnings("unchecked")
+    private void loadMapping() {
+        Map<String, Object> definition;
+        try (InputStream in = new FileInputStream(mappingFile);
+             XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY, in)) {
+            definition = parser.map();
+        } catch (IOException e) {
+            throw new MetafactureException("Can't read mapping " + mappingFile, e);
+        }
+        if (definition.containsKey("mappings")) definition = (Map<String, Object>) definition.get("mappings");
+        if (!definition.containsKey("properties")) {
+            Object typeMapping = definition.get(type);
+            if (typeMapping == null && definition.size() == 1) typeMapping = definition.values().iterator().next();
+            if (!(typeMapping instanceof Map))
+                throw new MetafactureException("No mapping for type " + type + " in " + mappingFile);
+            definition = (Map<String, Object>) typeMapping;
+        }
+        mapping = MappedField.of(null, definition);
+        plan.field = mapping;
+        LOG.info("Loaded mapping of {} fields from {}", mapping.children.size(), mappingFile);
+    }
+
+    /**
+     * Gets the mapping of a key
+     *
+     * @param parent Parent node of the key
+     * @param name   Name of the key
+     * @return Mapping of the key or null if the key isn't mapped
+     */
+    private MappedField mappedField(JsonToken parent, String name) {
+        if (mapping == null) return null;
+        MappedField parentField;
+        if (parent.getType() == KEY) {
+            parentField = parent.field;
+        } else {
+            parentField = parent.getParent() == null ? mapping : parent.getParent().field;
+        }
+        return parentField == null ? null : parentField.children.get(name);
+    }
+
+    private void treeLiteral(String name, String value) {
         buildKey(name);
         new JsonToken(VALUE, value, node);
     }
 
+    private void logEvent(String type, String name, String value) {
+        loggedEvents.add(type);
+        loggedEvents.add(name);
+        loggedEvents.add(value);
+    }
+
     /**
-     * Creates a new parent token
-     *
-     * @param name Name of parent
+     * Replays the events of the current record, which doesn't fit the plan, through the generic tree
      */
-    private void buildKey(String name) {
-        JsonToken sameNode = checkKeyExists(getParentNode(), name);
-        node = (sameNode == null) ?
-                new JsonToken(KEY, name, getParentNode()) :
-                sameNode;
-        ctxRegistry.put(node.getParent(), node);
-        makeChildNode = false;
+    private void fallBack() {
+        LOG.trace("Record {} doesn't fit plan", id);
+        planMissed = true;
+        startTree();
+        for (int i = 0; i < loggedEvents.size(); i += 3) {
+            String event = loggedEvents.get(i);
+            if (event == START_ENTITY) {
+                startTreeEntity(loggedEvents.get(i + 1));
+            } else if (event == END_ENTITY) {
+                endTreeEntity();
+            } else {
+                treeLiteral(loggedEvents.get(i + 1), loggedEvents.get(i + 2));
+            }
+        }
+    }
+
+    private boolean planStartEntity(String name) {
+        PlanNode parent = planStack[planDepth - 1];
+        if (parent.kind == PlanNode.OBJECT_ARRAY) return false;
+        boolean separate = name.endsWith("{}") || avoidMergers;
+        PlanNode child = parent.children.get(stripBraces(name));
+        if (child == null || child.kind != (separate ? PlanNode.OBJECT_ARRAY : PlanNode.OBJECT)) return false;
+        child.touch(recordNumber);
+        if (separate) {
+            if (child.count > 0) child.buffer.appendAscii(COMMA);
+            child.buffer.appendAscii('{');
+            child.element = ++elementNumber;
+            child.members = 0;
+        }
+        child.count++;
+        if (planDepth == planStack.length) planStack = Arrays.copyOf(planStack, planDepth * 2);
+        planStack[planDepth++] = child;
+        return true;
+    }
+
+    private boolean planEndEntity() {
+        PlanNode entity = planStack[--planDepth];
+        if (entity.kind == PlanNode.OBJECT_ARRAY) {
+            // Empty elements are represented in a peculiar way by the generic tree
+            if (entity.members == 0) return false;
+            entity.buffer.appendAscii('}');
+            return true;
+        }
+        for (PlanNode child : entity.ordered) {
+            if (child.record == recordNumber && child.count > 0) return true;
+        }
+        return false;
+    }
+
+    private boolean planLiteral(String name, String value) {
+        PlanNode parent = planStack[planDepth - 1];
+        String key = stripBraces(name);
+        PlanNode child = parent.children.get(key);
+        if (child == null || child.kind != PlanNode.VALUES) return false;
+        if (value != null) value = stripBraces(value);
+        if (parent.kind == PlanNode.OBJECT_ARRAY) {
+            // Repeated keys in an element would have to be merged
+            if (child.element == parent.element) return false;
+            child.element = parent.element;
+            if (parent.members++ > 0) parent.buffer.appendAscii(COMMA);
+            appendString(parent.buffer, key);
+            parent.buffer.appendAscii(':');
+            appendValue(parent.buffer, value, child.field);
+            return true;
+        }
+        child.touch(recordNumber);
+        if (child.count++ > 0) child.buffer.appendAscii(COMMA);
+        appendValue(child.buffer, value, child.field);
+        return true;
     }
 
     /**
-     * Checks if a parent with same name and same root parent (context) exists
+     * Extends the plan by the layout of a record
      *
-     * @param rootKey Reference to root parent
-     * @param name    Name of parent
-     * @return JsonToken Root parent, if a parent has been found, otherwise null
+     * @param jt       Object in the tree of the record
+     * @param planNode Corresponding node in the plan
      */
-    private JsonToken checkKeyExists(JsonToken rootKey, String name) {
-        if (name.endsWith("{}")) name = name.substring(0, name.length() - 2);
-        JsonToken foundKey = null;
-        if (ctxRegistry.containsKey(rootKey)) {
-            for (JsonToken jt : ctxRegistry.get(rootKey)) {
-                if (jt.getName().equals(name)) {
-                    LOG.trace("Merging key {}", name);
-                    foundKey = jt;
+    private void learn(JsonToken jt, PlanNode planNode) {
+        for (JsonToken key : jt.getChildren()) {
+            if (key.getType() != KEY) continue;
+            byte kind = kindOf(key);
+            PlanNode child = planNode.children.get(key.getName());
+            if (child == null) {
+                child = new PlanNode(key.getName(), kind);
+                child.field = key.field;
+                planNode.add(child);
+            } else if (child.kind != kind) {
+                child.kind = PlanNode.UNPLANNABLE;
+            }
+            if (child.kind == PlanNode.OBJECT) {
+                learn(key, child);
+            } else if (child.kind == PlanNode.OBJECT_ARRAY) {
+                for (JsonToken element : key.getChildren()) {
+                    learn(element, child);
                 }
             }
         }
-        return foundKey;
+    }
+
+    private static byte kindOf(JsonToken key) {
+        byte childType = key.getChildren().get(0).getType();
+        for (JsonToken child : key.getChildren()) {
+            if (child.getType() != childType) return PlanNode.UNPLANNABLE;
+        }
+        switch (childType) {
+            case VALUE:
+                return PlanNode.VALUES;
+            case KEY:
+                return PlanNode.OBJECT;
+            default:
+                return PlanNode.OBJECT_ARRAY;
+        }
+    }
+
+    private static String stripBraces(String name) {
+        return name.endsWith("{}") ? name.substring(0, name.length() - 2) : name;
+    }
+
+    /**
+     * Creates a new parent token or reuses the parent with same name and same root parent (context)
+     *
+     * @param name Name of parent
+     */
+    private void buildKey(String name) {
+        JsonToken parent = getParentNode();
+        if (name.endsWith("{}")) name = name.substring(0, name.length() - 2);
+        JsonToken sameNode = parent.getKey(name);
+        if (sameNode == null) {
+            node = new JsonToken(KEY, name, parent);
+            node.field = mappedField(parent, name);
+            parent.putKey(name, node);
+        } else {
+            LOG.trace("Merging key {}", name);
+            node = sameNode;
+        }
+        makeChildNode = false;
     }
 
     /**
@@ -180,40 +755,38 @@ public final class ESBulkEncoder extends DefaultStreamPipe<ObjectReceiver<String
     }
 
     /**
-     * Builds JSON string
-     *
-     * @return JSON string
+     * Serialises the descendants of a JSON token into the output buffer
      */
-    private String buildJsonString(byte lastTokenType, JsonToken jt) {
-        StringBuilder stringBuilder = new StringBuilder();
+    private void buildJson(byte lastTokenType, JsonToken jt) {
         for (JsonToken child : jt.getChildren()) {
             // Set prefixes if required
             if (lastTokenType == OBJECT || lastTokenType == ARRAY) {
-                stringBuilder.append((child.getType() == KEY || child.getType() == BNODE) ? COMMA : NONE);
+                if (child.getType() == KEY || child.getType() == BNODE) output.appendAscii(COMMA);
             } else if (lastTokenType == VALUE) {
-                stringBuilder.append((child.getType() == KEY || child.getType() == VALUE) ? COMMA : NONE);
+                if (child.getType() == KEY || child.getType() == VALUE) output.appendAscii(COMMA);
             }
             // Set name of key / value
-            stringBuilder.append(child.toString());
+            if (child.getType() == KEY) appendString(output, child.getName());
+            if (child.getType() == VALUE) appendValue(output, child.getName(), jt.field);
             // Descend to child nodes if present
             if (child.getType() == KEY || child.getType() == BNODE) {
                 switch (child.getParentheses()) {
                     case 0:
-                        stringBuilder.append(":");
-                        stringBuilder.append(buildJsonString((byte) 0, child));
+                        output.appendAscii(':');
+                        buildJson((byte) 0, child);
                         lastTokenType = VALUE;
                         break;
                     case OBJECT:
-                        if (child.getType() != BNODE) stringBuilder.append(":");
-                        stringBuilder.append("{");
-                        stringBuilder.append(buildJsonString((byte) 0, child));
-                        stringBuilder.append("}");
+                        if (child.getType() != BNODE) output.appendAscii(':');
+                        output.appendAscii('{');
+                        buildJson((byte) 0, child);
+                        output.appendAscii('}');
                         lastTokenType = OBJECT;
                         break;
                     case ARRAY:
-                        stringBuilder.append(":[");
-                        stringBuilder.append(buildJsonString((byte) 0, child));
-                        stringBuilder.append("]");
+                        output.appendAscii(':').appendAscii('[');
+                        buildJson((byte) 0, child);
+                        output.appendAscii(']');
                         lastTokenType = ARRAY;
                         break;
                 }
@@ -221,7 +794,288 @@ public final class ESBulkEncoder extends DefaultStreamPipe<ObjectReceiver<String
                 lastTokenType = VALUE;
             }
         }
-        return stringBuilder.toString();
+    }
+
+    /**
+     * Serialises the record along the plan into the output buffer
+     *
+     * @param planNode Node in plan corresponding to an object
+     */
+    private void buildJson(PlanNode planNode) {
+        boolean first = true;
+        for (PlanNode child : planNode.ordered) {
+            if (child.record != recordNumber || child.count == 0) continue;
+            if (!first) output.appendAscii(COMMA);
+            first = false;
+            appendString(output, child.name);
+            output.appendAscii(':');
+            if (child.kind == PlanNode.OBJECT) {
+                output.appendAscii('{');
+                buildJson(child);
+                output.appendAscii('}');
+            } else if (child.count > 1) {
+                output.appendAscii('[').append(child.buffer).appendAscii(']');
+            } else {
+                output.append(child.buffer);
+            }
+        }
+    }
+
+    /**
+     * Appends a value, which is typed according to the mapping of its field. Values which aren't valid numbers or
+     * booleans are kept as strings.
+     *
+     * @param output Buffer
+     * @param value  Unescaped value, possibly null
+     * @param field  Mapping of the field, null if the field isn't mapped
+     */
+    private void appendValue(Utf8Buffer output, String value, MappedField field) {
+        switch (valueType(value, field)) {
+            case NULL:
+                output.append("null");
+                break;
+            case MappedField.TEXT:
+                appendString(output, value == null ? "" : value);
+                break;
+            default:
+                output.append(value);
+        }
+    }
+
+    /**
+     * Writes a value in SMILE, which is typed according to the mapping of its field
+     *
+     * @param generator SMILE generator
+     * @param value     Value, possibly null
+     * @param field     Mapping of the field, null if the field isn't mapped
+     */
+    private static void writeValue(JsonGenerator generator, String value, MappedField field) throws IOException {
+        switch (valueType(value, field)) {
+            case NULL:
+                generator.writeNull();
+                break;
+            case MappedField.TEXT:
+                generator.writeString(value == null ? "" : value);
+                break;
+            case MappedField.BOOLEAN:
+                generator.writeBoolean(value.equals("true"));
+                break;
+            default:
+                if (isNumber(value, true)) {
+                    if (value.length() < 19) {
+                        generator.writeNumber(Long.parseLong(value));
+                    } else {
+                        generator.writeNumber(new BigInteger(value));
+                    }
+                } else {
+                    generator.writeNumber(Double.parseDouble(value));
+                }
+        }
+    }
+
+    /**
+     * Determines how a value is serialised according to the mapping of its field. Values which aren't valid numbers
+     * or booleans are kept as strings.
+     *
+     * @param value Value, possibly null
+     * @param field Mapping of the field, null if the field isn't mapped
+     * @return NULL or type of mapped field the value is serialised as
+     */
+    private static byte valueType(String value, MappedField field) {
+        byte fieldType = field == null ? MappedField.TEXT : field.type;
+        if (fieldType != MappedField.TEXT && (value == null || value.isEmpty())) return NULL;
+        if (value == null) return MappedField.TEXT;
+        if ((fieldType == MappedField.INTEGER || fieldType == MappedField.DECIMAL) &&
+                isNumber(value, fieldType == MappedField.INTEGER)) return fieldType;
+        if (fieldType == MappedField.BOOLEAN && (value.equals("true") || value.equals("false"))) return fieldType;
+        return MappedField.TEXT;
+    }
+
+    /**
+     * Checks if a string is a number according to the JSON grammar
+     *
+     * @param value   String
+     * @param integer Only integers are accepted
+     * @return true if string is a number
+     */
+    private static boolean isNumber(String value, boolean integer) {
+        int length = value.length();
+        int i = value.charAt(0) == '-' ? 1 : 0;
+        int digits = i;
+        while (i < length && value.charAt(i) >= '0' && value.charAt(i) <= '9') i++;
+        if (i == digits || value.charAt(digits) == '0' && i > digits + 1) return false;
+        if (i == length) return true;
+        if (integer) return false;
+        if (value.charAt(i) == '.') {
+            digits = ++i;
+            while (i < length && value.charAt(i) >= '0' && value.charAt(i) <= '9') i++;
+            if (i == digits) return false;
+        }
+        if (i < length && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+            i++;
+            if (i < length && (value.charAt(i) == '+' || value.charAt(i) == '-')) i++;
+            digits = i;
+            while (i < length && value.charAt(i) >= '0' && value.charAt(i) <= '9') i++;
+            if (i == digits) return false;
+        }
+        return i == length;
+    }
+
+    /**
+     * Appends a JSON string. If required, prohibited characters are escaped on the fly: Unproblematic runs of
+     * characters are copied as a whole.
+     *
+     * @param output Buffer
+     * @param value  Unescaped string
+     */
+    private void appendString(Utf8Buffer output, String value) {
+        output.appendAscii('"');
+        if (!escapeChars) {
+            output.append(value).appendAscii('"');
+            return;
+        }
+        int start = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            char escaped;
+            switch (c) {
+                case '\\':
+                case '"':
+                    escaped = c;
+                    break;
+                case '\b':
+                    escaped = 'b';
+                    break;
+                case '\t':
+                    escaped = 't';
+                    break;
+                case '\n':
+                    escaped = 'n';
+                    break;
+                case '\f':
+                    escaped = 'f';
+                    break;
+                case '\r':
+                    escaped = 'r';
+                    break;
+                default:
+                    if (c >= ' ') continue;
+                    escaped = 'u';
+            }
+            output.append(value, start, i).appendAscii('\\').appendAscii(escaped);
+            if (escaped == 'u') {
+                output.appendAscii('0').appendAscii('0').appendAscii(HEX[c >> 4]).appendAscii(HEX[c & 0xf]);
+            }
+            start = i + 1;
+        }
+        output.append(value, start, length).appendAscii('"');
+    }
+
+    /**
+     * Node in the compiled plan of the records. Besides the layout, a node holds the serialised values of the current
+     * record, which are reset lazily as soon as the node is touched in a new record.
+     */
+    private static final class PlanNode {
+
+        static final byte VALUES = 0;           // Key holding one or several values
+        static final byte OBJECT = 1;           // Key holding merged entities
+        static final byte OBJECT_ARRAY = 2;     // Key holding separate entities
+        static final byte UNPLANNABLE = 3;      // Key with varying layout, always handled by the generic tree
+
+        final String name;
+        byte kind;
+        final Map<String, PlanNode> children = new HashMap<>();
+        final List<PlanNode> ordered = new ArrayList<>();
+
+        int record;             // Number of record the state belongs to
+        Utf8Buffer buffer;      // Serialised values or elements, separated by commas
+        int count;              // Number of values, entities or elements
+        int element;            // Number of current element (object arrays) or of element the key was last set in
+        int members;            // Number of members in current element
+        MappedField field;      // Mapping of key, null if the key isn't mapped
+
+        PlanNode(String name, byte kind) {
+            this.name = name;
+            this.kind = kind;
+        }
+
+        void add(PlanNode child) {
+            children.put(child.name, child);
+            ordered.add(child);
+        }
+
+        void touch(int recordNumber) {
+            if (record == recordNumber) return;
+            record = recordNumber;
+            count = 0;
+            if (buffer == null) buffer = new Utf8Buffer(256);
+            buffer.reset();
+        }
+    }
+
+    /**
+     * Field in an Elasticsearch mapping, reduced to the information needed to type its values
+     */
+    private static final class MappedField {
+
+        static final byte TEXT = 0;             // Strings, objects and unknown types, values are quoted
+        static final byte INTEGER = 1;
+        static final byte DECIMAL = 2;
+        static final byte BOOLEAN = 3;
+        static final byte DATE = 4;             // Quoted, but missing values are null
+
+        final byte type;
+        final Map<String, MappedField> children = new HashMap<>();
+
+        MappedField(byte type) {
+            this.type = type;
+        }
+
+        /**
+         * Creates a field from its definition in the mapping
+         *
+         * @param type       Type of the field, null for objects
+         * @param definition Definition of the field, possibly with properties
+         * @return Field with its properties as children
+         */
+        @SuppressWarnings("unchecked")
+        static MappedField of(String type, Map<String, Object> definition) {
+            MappedField field = new MappedField(typeOf(type));
+            Object properties = definition.get("properties");
+            if (properties instanceof Map) {
+                for (Map.Entry<String, Object> property : ((Map<String, Object>) properties).entrySet()) {
+                    if (!(property.getValue() instanceof Map)) continue;
+                    Map<String, Object> propertyDefinition = (Map<String, Object>) property.getValue();
+                    Object propertyType = propertyDefinition.get("type");
+                    field.children.put(property.getKey(),
+                            of(propertyType == null ? null : propertyType.toString(), propertyDefinition));
+                }
+            }
+            return field;
+        }
+
+        private static byte typeOf(String type) {
+            if (type == null) return TEXT;
+            switch (type) {
+                case "long":
+                case "integer":
+                case "short":
+                case "byte":
+                    return INTEGER;
+                case "double":
+                case "float":
+                case "half_float":
+                case "scaled_float":
+                    return DECIMAL;
+                case "boolean":
+                    return BOOLEAN;
+                case "date":
+                    return DATE;
+                default:
+                    return TEXT;
+            }
+        }
     }
 
     /**
@@ -234,6 +1088,8 @@ public final class ESBulkEncoder extends DefaultStreamPipe<ObjectReceiver<String
         final List<JsonToken> children = new ArrayList<>();    // Last element belonging to the parent (parent only, else null)
         final JsonToken parent;        // Key which token belongs to (for parent: root parent)
         byte parentheses = -1;  // Parentheses which surrounds descendants (none, brackets or braces)
+        Map<String, JsonToken> keys;    // Child keys by unescaped name, created on first key
+        MappedField field;      // Mapping of key, null if the key isn't mapped
 
 
         /**
@@ -245,33 +1101,13 @@ public final class ESBulkEncoder extends DefaultStreamPipe<ObjectReceiver<String
          */
         JsonToken(byte type, String name, JsonToken parent) {
             this.type = type;
-            if (name == null) name = "";
-            if (name.endsWith("{}")) name = name.substring(0, name.length() - 2);
-            this.name = (escapeChars && !(name.equals(""))) ? escChars(name) : name;
+            if (name != null && name.endsWith("{}")) name = name.substring(0, name.length() - 2);
+            this.name = name;
             this.parent = parent;
             if (parent != null) parent.setChildren(this);
             if (type == BNODE) this.parentheses = OBJECT;
         }
 
-        /**
-         * Prints respective literal
-         *
-         * @return Literal
-         */
-        @Override
-        public String toString() {
-            switch (this.getType()) {
-                case BNODE:
-                    return NONE;
-                case KEY:
-                    return "\"" + this.getName() + "\"";
-                case VALUE:
-                    return "\"" + this.getName() + "\"";
-                default:
-                    return NONE;
-            }
-        }
-
         /**
          * Gets name of this JSON token
          */
@@ -300,6 +1136,27 @@ public final class ESBulkEncoder extends DefaultStreamPipe<ObjectReceiver<String
             children.add(jt);
         }
 
+        /**
+         * Gets child key by name
+         *
+         * @param name Unescaped name of key
+         * @return Key or null if there is no child key with this name
+         */
+        JsonToken getKey(String name) {
+            return keys == null ? null : keys.get(name);
+        }
+
+        /**
+         * Registers child key, so that later keys with same name can be merged into it
+         *
+         * @param name Unescaped name of key
+         * @param key  Key
+         */
+        void putKey(String name, JsonToken key) {
+            if (keys == null) keys = new HashMap<>();
+            keys.put(name, key);
+        }
+
         /**
          * Gets parent node
          *
@@ -327,44 +1184,6 @@ public final class ESBulkEncoder extends DefaultStreamPipe<ObjectReceiver<String
             return parentheses;
         }
 
-        String escChars(String value) {
-            StringBuilder stringBuilder = new StringBuilder();
-            String t;
-            for (char c : value.toCharArray()) {
-                switch (c) {
-                    case '\\':
-                    case '"':
-                        stringBuilder.append('\\');
-                        stringBuilder.append(c);
-                        break;
-                    case '\b':
-                        stringBuilder.append("\\b");
-                        break;
-                    case '\t':
-                        stringBuilder.append("\\t");
-                        break;
-                    case '\n':
-                        stringBuilder.append("\\n");
-                        break;
-                    case '\f':
-                        stringBuilder.append("\\f");
-                        break;
-                    case '\r':
-                        stringBuilder.append("\\r");
-                        break;
-                    default:
-                        if (c < ' ') {
-                            t = "000" + Integer.toHexString(c);
-                            stringBuilder.append("\\u");
-                            stringBuilder.append(t.substring(t.length() - 4));
-                        } else {
-                            stringBuilder.append(c);
-                        }
-                }
-            }
-            return stringBuilder.toString();
-        }
-
     }
 
 }
@@ -20,7 +20,7 @@ import org.neo4j.graphdb.factory.GraphDatabaseFactory;
 import org.neo4j.graphdb.factory.GraphDatabaseSettings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.swissbib.linked.mf.utils.TransportClientSingleton;
+import org.swissbib.linked.mf.utils.TransportClientRegistry;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -44,6 +44,7 @@ public class ESIdUpdate extends DefaultStreamPipe<StreamReceiver> {
 
     private String[] esNodes = {"localhost:9300"};
     private String esClustername = "linked-swissbib";
+    private boolean sniff = true;
     private List<String> mFields = new ArrayList<>();
     private Float sThreshold;
     private String uriPrefix;
@@ -92,6 +93,11 @@ public class ESIdUpdate extends DefaultStreamPipe<StreamReceiver> {
         LOG.debug("Settings - Set addresses of Elasticsearch nodes: {} (# is a delimiter)", esNode);
     }
 
+    public void setSniff(final String sniff) {
+        this.sniff = Boolean.parseBoolean(sniff);
+        LOG.debug("Settings - Sniff further nodes of cluster: {}", sniff);
+    }
+
     public void setMatchingFields(final String matchingFields) {
         mFields = Arrays.asList(matchingFields.split("#"));
         LOG.debug("Settings - Set matching fields: {} (# is a delimiter)", mFields);
@@ -124,6 +130,7 @@ public class ESIdUpdate extends DefaultStreamPipe<StreamReceiver> {
     @Override
     public void startRecord(String identifier) {
         this.identifier = identifier;
+        if (esClient == null) connect();
         if (!skipAll) {
             GetResponse response = esClient
                     .prepareGet(index, type, identifier)
@@ -271,20 +278,24 @@ public class ESIdUpdate extends DefaultStreamPipe<StreamReceiver> {
         }
     }
 
-    @Override
-    protected void onSetReceiver() {
-        LOG.debug("Setting receiver");
-        esClient = TransportClientSingleton.getEsClient(esNodes, this.esClustername);
+    /**
+     * Acquires a client for the cluster and checks whether the index exists
+     */
+    private void connect() {
+        esClient = TransportClientRegistry.acquire(esNodes, this.esClustername, sniff);
         String[] indices = esClient
                 .admin()
                 .indices()
                 .getIndex(new GetIndexRequest())
                 .actionGet()
                 .indices();
-        if (!Arrays.asList(indices).contains(index)) {
-            LOG.info("No index {} exists in cluster. Skipping further queries.", index);
-            skipAll = true;
-        }
+        skipAll = !Arrays.asList(indices).contains(index);
+        if (skipAll) LOG.info("No index {} exists in cluster. Skipping further queries.", index);
+    }
+
+    @Override
+    protected void onSetReceiver() {
+        LOG.debug("Setting receiver");
         graphDb = new GraphDatabaseFactory()
                 .newEmbeddedDatabaseBuilder(graphDbDir)
                 // TODO: Check possible further tweakings
@@ -294,6 +305,12 @@ public class ESIdUpdate extends DefaultStreamPipe<StreamReceiver> {
         super.onSetReceiver();
     }
 
+    @Override
+    protected void onCloseStream() {
+        if (esClient != null) TransportClientRegistry.release(esClient);
+        esClient = null;
+    }
+
     private enum lsbLabels implements Label {
         BIBLIOGRAPHICRESOURCE, PERSON, ORGANISATION
     }
@@ -12,7 +12,7 @@ import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.swissbib.linked.mf.utils.TransportClientSingleton;
+import org.swissbib.linked.mf.utils.TransportClientRegistry;
 import org.swissbib.linked.mf.writer.ESBulkIndexer;
 
 /**
@@ -31,6 +31,7 @@ public class ESItemEraser extends DefaultStreamPipe<StreamReceiver> {
     private TransportClient esClient;
     private String esClustername;
     private String[] esNodes;
+    private boolean sniff = true;
     private String esIndex;
     private String esType;
     private boolean nodeExists;
@@ -48,6 +49,12 @@ public class ESItemEraser extends DefaultStreamPipe<StreamReceiver> {
     }
 
 
+    public void setSniff(final String sniff) {
+        this.sniff = Boolean.parseBoolean(sniff);
+        LOG.debug("Settings - Sniff further nodes of cluster: {}", sniff);
+    }
+
+
     public void setEsIndex(String esIndex) {
         this.esIndex = esIndex;
     }
@@ -91,13 +98,14 @@ public class ESItemEraser extends DefaultStreamPipe<StreamReceiver> {
 
     @Override
     protected void onCloseStream() {
-        esClient.close();
+        if (esClient != null) TransportClientRegistry.release(esClient);
+        esClient = null;
     }
 
 
     private void eraseItems(String resId) {
         if (esClient == null)
-            esClient = TransportClientSingleton.getEsClient(esNodes, esClustername);
+            esClient = TransportClientRegistry.acquire(esNodes, esClustername, sniff);
         SearchHits sh = esClient.prepareSearch(esIndex)
                 .setTypes(esType)
                 .setSearchType(SearchType.DFS_QUERY_THEN_FETCH)
@@ -5,19 +5,27 @@ import org.metafacture.framework.annotations.Description;
 import org.metafacture.framework.annotations.In;
 import org.metafacture.framework.annotations.Out;
 import org.metafacture.framework.helpers.DefaultStreamPipe;
+import org.metafacture.flowcontrol.StreamBuffer;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
 import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.swissbib.linked.mf.utils.TransportClientSingleton;
+import org.swissbib.linked.mf.utils.TransportClientRegistry;
 import org.swissbib.linked.mf.writer.ESBulkIndexer;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * @author Sebastian Schüpbach
  * @version 0.1
  *          <p>
  *          Created on 24.03.16
  */
-@Description("Filters out records which already exists in Elasticsearch index.")
+@Description("Filters out records which already exists in Elasticsearch index. Records are looked up in batches.")
 @In(StreamReceiver.class)
 @Out(StreamReceiver.class)
 public class ESLookup extends DefaultStreamPipe<StreamReceiver> {
@@ -27,9 +35,27 @@ public class ESLookup extends DefaultStreamPipe<StreamReceiver> {
     private TransportClient esClient;
     private String esClustername;
     private String[] esNodes;
+    private boolean sniff = true;
     private String esIndex;
     private String esType;
-    private boolean nodeExists;
+    private int batchSize = 100;
+    private long batchWindow = 1000;
+    private final List<StreamBuffer> buffers = new ArrayList<>();
+    private final List<String> ids = new ArrayList<>();
+    private StreamBuffer currentRecord;
+    private long batchStart;
+
+
+    public ESLookup() {
+    }
+
+
+    /**
+     * @param esClient Client used instead of one acquired for the configured cluster
+     */
+    ESLookup(TransportClient esClient) {
+        this.esClient = esClient;
+    }
 
 
     public void setEsClustername(final String esClustername) {
@@ -44,6 +70,12 @@ public class ESLookup extends DefaultStreamPipe<StreamReceiver> {
     }
 
 
+    public void setSniff(final String sniff) {
+        this.sniff = Boolean.parseBoolean(sniff);
+        LOG.debug("Settings - Sniff further nodes of cluster: {}", sniff);
+    }
+
+
     public void setEsIndex(String esIndex) {
         this.esIndex = esIndex;
     }
@@ -54,47 +86,100 @@ public class ESLookup extends DefaultStreamPipe<StreamReceiver> {
     }
 
 
+    public void setBatchSize(final String batchSize) {
+        this.batchSize = Math.max(1, Integer.parseInt(batchSize));
+        LOG.debug("Settings - Set number of records looked up in one request: {}", batchSize);
+    }
+
+
+    public void setBatchWindow(final String batchWindow) {
+        this.batchWindow = Long.parseLong(batchWindow);
+        LOG.debug("Settings - Set maximal time in milliseconds records are held back: {}", batchWindow);
+    }
+
+
     @Override
     public void startRecord(String identifier) {
-        nodeExists = lookupId(identifier);
-        LOG.debug("Document {} {} in {}/{}", identifier, (nodeExists) ? "already exists" : "doesn't exist yet", esIndex, esType);
-        if (!nodeExists) getReceiver().startRecord(identifier);
+        if (ids.size() == buffers.size()) {
+            StreamBuffer buffer = new StreamBuffer();
+            buffer.setReceiver(getReceiver());
+            buffers.add(buffer);
+        }
+        if (ids.isEmpty()) batchStart = System.currentTimeMillis();
+        currentRecord = buffers.get(ids.size());
+        ids.add(identifier);
+        currentRecord.startRecord(identifier);
     }
 
 
     @Override
     public void endRecord() {
-        if (!nodeExists) getReceiver().endRecord();
+        currentRecord.endRecord();
+        currentRecord = null;
+        if (ids.size() >= batchSize || System.currentTimeMillis() - batchStart >= batchWindow) lookupBatch();
     }
 
 
     @Override
     public void startEntity(String name) {
-        if (!nodeExists) getReceiver().startEntity(name);
+        currentRecord.startEntity(name);
     }
 
 
     @Override
     public void endEntity() {
-        if (!nodeExists) getReceiver().endEntity();
+        currentRecord.endEntity();
     }
 
 
     @Override
     public void literal(String name, String value) {
-        if (!nodeExists) getReceiver().literal(name, value);
+        currentRecord.literal(name, value);
+    }
+
+
+    @Override
+    protected void onResetStream() {
+        lookupBatch();
+    }
+
+
+    @Override
+    protected void onCloseStream() {
+        lookupBatch();
+        if (esClient != null) TransportClientRegistry.release(esClient);
+        esClient = null;
     }
 
 
     /**
-     * Checks if a document already exists in Elasticsearch index by issuing a get request on the identifier
-     *
-     * @param id Identifier of the document / record
-     * @return true if document exists
+     * Checks which of the buffered records already exist in Elasticsearch index by issuing a single multi get request
+     * without source on their identifiers. Records which don't exist yet are sent down the pipe in their original
+     * order, the others are dropped.
      */
-    private boolean lookupId(String id) {
+    private void lookupBatch() {
+        if (ids.isEmpty()) return;
         if (esClient == null)
-            esClient = TransportClientSingleton.getEsClient(esNodes, esClustername);
-        return esClient.prepareGet(esIndex, esType, id).get().isExists();
+            esClient = TransportClientRegistry.acquire(esNodes, esClustername, sniff);
+        MultiGetRequestBuilder request = esClient.prepareMultiGet();
+        for (String id : ids) {
+            request.add(new MultiGetRequest.Item(esIndex, esType, id)
+                    .fetchSourceContext(FetchSourceContext.DO_NOT_FETCH_SOURCE));
+        }
+        MultiGetItemResponse[] responses = request.get().getResponses();
+        for (int i = 0; i < ids.size(); i++) {
+            boolean docExists;
+            if (responses[i].isFailed()) {
+                LOG.warn("Lookup of document {} failed, keeping record: {}", ids.get(i),
+                        responses[i].getFailure().getMessage());
+                docExists = false;
+            } else {
+                docExists = responses[i].getResponse().isExists();
+            }
+            LOG.debug("Document {} {} in {}/{}", ids.get(i), (docExists) ? "already exists" : "doesn't exist yet", esIndex, esType);
+            if (!docExists) buffers.get(i).replay();
+            buffers.get(i).clear();
+        }
+        ids.clear();
     }
 }
@@ -1,17 +1,25 @@
 package org.swissbib.linked.mf.pipe;
 
+import com.google.common.hash.Hashing;
 import org.metafacture.framework.ObjectReceiver;
 import org.metafacture.framework.StreamReceiver;
 import org.metafacture.framework.annotations.Description;
 import org.metafacture.framework.annotations.In;
 import org.metafacture.framework.annotations.Out;
 import org.metafacture.framework.helpers.DefaultStreamPipe;
+import org.swissbib.linked.mf.utils.Utf8Buffer;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
 
 /**
- * Encodes data in the Formeta format to the N-triples RDF serialization.
+ * Encodes data in the Formeta format to the N-triples RDF serialization. The statements of a record are written
+ * directly into a reusable UTF-8 buffer, which is emitted either as string or as byte array.
+ * <p>
+ * Labels of blank nodes are derived from a hash of the record identifier and the number of the entity in the record.
+ * They are therefore unique across several encoder instances without any coordination, as long as the record
+ * identifiers are, and outputs of encoders running in parallel can simply be concatenated.
  *
  * @author Sebastian Schüpbach
  * @version 1.0
@@ -19,82 +27,158 @@ import java.util.List;
  */
 @Description("Encodes data in Formeta format to N-triples RDF serialization.")
 @In(StreamReceiver.class)
-@Out(String.class)
-public class NtriplesEncoder extends DefaultStreamPipe<ObjectReceiver<String>> {
+@Out(Object.class)
+public class NtriplesEncoder extends DefaultStreamPipe<ObjectReceiver<Object>> {
 
-    private final List<String> subjects = new ArrayList<>();
-    private int bnodeCounter = 0;
-    private final StringBuilder resource = new StringBuilder();
+    private String recordId;
+    private String bnodePrefix;
+    private int[] entities = new int[16];   // Stack of entity numbers, 0 denoting the record itself
+    private int depth;
+    private int entityCounter;
+    private final Utf8Buffer resource = new Utf8Buffer(1024 * 16);
+    private Boolean outputBytes = false;
 
     /**
-     * Performs a simple check if a string could be a URI
+     * Performs a simple check if a string could be a URI, i.e. if it consists of at least two characters without
+     * spaces joined by a colon
      * @param uri String to be checked
      * @return true if string could be a URI, false if otherwise
      */
-    private static Boolean simpleUriCheck(String uri) {
+    private static boolean simpleUriCheck(String uri) {
         // scheme:[//[user:password@]host[:port]][/]path[?query][#fragment]
-        return uri.matches("[^ ]+:[^ ]+");
+        int length = uri.length();
+        boolean colon = false;
+        for (int i = 0; i < length; i++) {
+            char c = uri.charAt(i);
+            if (c == ' ') return false;
+            if (c == ':' && i > 0 && i < length - 1) colon = true;
+        }
+        return colon;
+    }
+
+    /**
+     * Creates the prefix of the blank node labels of a record, i.e. "_:b", the hex encoded 128 bit hash of the
+     * record identifier and a dash. Records without identifier get a random prefix.
+     * @param identifier Identifier of record
+     * @return Prefix of blank node labels
+     */
+    private static String createBnodePrefix(String identifier) {
+        if (identifier == null || identifier.isEmpty()) identifier = UUID.randomUUID().toString();
+        return "_:b" + Hashing.murmur3_128().hashString(identifier, StandardCharsets.UTF_8) + "-";
     }
 
     /**
-     * Creates a blank node "identifier"
-     * @param counter Number of identifier
-     * @return Identifier as string
+     * Emits records as UTF-8 encoded byte arrays instead of strings, which spares sinks like write-kafka the
+     * encoding
+     * @param outputBytes "true", "false"
      */
-    private static String createBnode(int counter) {
-        return "_:b" + ("0000000" + String.valueOf(counter)).substring(String.valueOf(counter).length());
+    public void setOutputBytes(String outputBytes) {
+        this.outputBytes = Boolean.valueOf(outputBytes);
     }
 
     /**
-     * Creates an N-triple compliant statement of a given subject, predicate and object
-     * @param subject Subject of the triple
+     * Appends the subject and predicate of an N-triple compliant statement to the record
+     * @param subject Number of the entity, or 0 for the record
      * @param predicate Predicate of the triple
-     * @param object Object of the triple
-     * @return N-triple statement as string
      */
-    private static String createStatement(String subject, String predicate, String object) {
-        StringBuilder statement = new StringBuilder();
-        statement.append((subject.startsWith("_")) ? subject : "<" + subject + ">");
-        statement.append(" <");
-        statement.append(predicate);
-        statement.append("> ");
-        if (simpleUriCheck(object)) {
-            statement.append(object.startsWith("_") ? object : "<" + object + ">");
+    private void appendSubjectAndPredicate(int subject, String predicate) {
+        if (subject == 0) {
+            appendResource(recordId);
+        } else {
+            appendBnode(subject);
+        }
+        resource.appendAscii(' ').appendAscii('<').append(predicate).appendAscii('>').appendAscii(' ');
+    }
+
+    private void appendBnode(int entity) {
+        resource.append(bnodePrefix).append(entity);
+    }
+
+    private void endStatement() {
+        resource.appendAscii(' ').appendAscii('.').appendAscii('\n');
+    }
+
+    private void appendResource(String resourceId) {
+        if (resourceId.startsWith("_")) {
+            resource.append(resourceId);
         } else {
-            statement.append("\"");
-            statement.append(object);
-            statement.append("\"");
+            resource.appendAscii('<').append(resourceId).appendAscii('>');
+        }
+    }
+
+    /**
+     * Appends a literal in quotes. Quotes, backslashes and line breaks are escaped.
+     * @param literal Literal
+     */
+    private void appendLiteral(String literal) {
+        resource.appendAscii('"');
+        int start = 0;
+        for (int i = 0; i < literal.length(); i++) {
+            char c = literal.charAt(i);
+            char escaped;
+            switch (c) {
+                case '"':
+                    escaped = '"';
+                    break;
+                case '\\':
+                    escaped = '\\';
+                    break;
+                case '\n':
+                    escaped = 'n';
+                    break;
+                case '\r':
+                    escaped = 'r';
+                    break;
+                default:
+                    continue;
+            }
+            resource.append(literal, start, i).appendAscii('\\').appendAscii(escaped);
+            start = i + 1;
         }
-        statement.append(" .\n");
-        return statement.toString();
+        resource.append(literal, start, literal.length()).appendAscii('"');
     }
 
     @Override
     public void startRecord(String identifier) {
-        subjects.add(identifier);
+        recordId = identifier;
+        bnodePrefix = null;
+        entities[0] = 0;
+        depth = 1;
+        entityCounter = 0;
     }
 
     @Override
     public void endRecord() {
-        getReceiver().process(resource.toString());
-        resource.setLength(0);
-        subjects.clear();
+        getReceiver().process(outputBytes ? resource.toByteArray() : resource.toString());
+        resource.reset();
+        depth = 0;
     }
 
     @Override
     public void startEntity(String name) {
-        subjects.add(createBnode(++bnodeCounter));
-        resource.append(createStatement(subjects.get(subjects.size() - 2), name, subjects.get(subjects.size() - 1)));
+        if (bnodePrefix == null) bnodePrefix = createBnodePrefix(recordId);
+        if (depth == entities.length) entities = Arrays.copyOf(entities, depth * 2);
+        entities[depth] = ++entityCounter;
+        appendSubjectAndPredicate(entities[depth - 1], name);
+        appendBnode(entityCounter);
+        endStatement();
+        depth++;
     }
 
     @Override
     public void endEntity() {
-        subjects.remove(subjects.size() - 1);
+        depth--;
     }
 
     @Override
     public void literal(String name, String value) {
-        resource.append(createStatement(subjects.get(subjects.size() - 1), name, value));
+        appendSubjectAndPredicate(entities[depth - 1], name);
+        if (simpleUriCheck(value)) {
+            appendResource(value);
+        } else {
+            appendLiteral(value);
+        }
+        endStatement();
     }
 
 }
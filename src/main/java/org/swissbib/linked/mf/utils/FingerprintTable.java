@@ -0,0 +1,128 @@
+package org.swissbib.linked.mf.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * <p>Maps 64 bit keys to 64 bit fingerprints, e.g. hashes of record identifiers to hashes of the serialised records.
+ * Keys and fingerprints are kept in two parallel arrays with open addressing, so tens of millions of entries need no
+ * more than a few hundred megabytes and no objects at all. Key 0 can't be told apart from an empty slot and is
+ * therefore stored as 1.</p>
+ * <p>Instances are not thread-safe.</p>
+ */
+public final class FingerprintTable {
+
+    private static final int INITIAL_CAPACITY = 1 << 16;
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private long[] fingerprints = new long[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * Sets the fingerprint of a key
+     *
+     * @param key         Key
+     * @param fingerprint Fingerprint
+     * @return false if the key already had this fingerprint, true otherwise
+     */
+    public boolean update(long key, long fingerprint) {
+        if (key == 0) key = 1;
+        int slot = find(key);
+        if (keys[slot] == key) {
+            if (fingerprints[slot] == fingerprint) return false;
+            fingerprints[slot] = fingerprint;
+            return true;
+        }
+        keys[slot] = key;
+        fingerprints[slot] = fingerprint;
+        if (++size * 2 > keys.length) rehash();
+        return true;
+    }
+
+    /**
+     * Removes a key
+     *
+     * @param key Key
+     */
+    public void remove(long key) {
+        if (key == 0) key = 1;
+        int slot = find(key);
+        if (keys[slot] != key) return;
+        // Shift following entries of the cluster back, so no entry becomes unreachable
+        int mask = keys.length - 1;
+        int gap = slot;
+        for (int next = (gap + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+            int home = slot(keys[next]);
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                fingerprints[gap] = fingerprints[next];
+                gap = next;
+            }
+        }
+        keys[gap] = 0;
+        size--;
+    }
+
+    /**
+     * @return Number of keys
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Writes the entries to a stream
+     *
+     * @param out Stream
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(size);
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] == 0) continue;
+            out.writeLong(keys[slot]);
+            out.writeLong(fingerprints[slot]);
+        }
+    }
+
+    /**
+     * Reads entries written by {@link #writeTo(DataOutputStream)}
+     *
+     * @param in Stream
+     * @return Table
+     */
+    public static FingerprintTable readFrom(DataInputStream in) throws IOException {
+        FingerprintTable table = new FingerprintTable();
+        for (int i = in.readInt(); i > 0; i--) {
+            table.update(in.readLong(), in.readLong());
+        }
+        return table;
+    }
+
+    private int slot(long key) {
+        return (int) (key ^ (key >>> 32)) & (keys.length - 1);
+    }
+
+    /**
+     * Finds the slot of a key, which is either the slot holding it or the empty slot where it would be added
+     */
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int slot = slot(key);
+        while (keys[slot] != 0 && keys[slot] != key) slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        long[] oldFingerprints = fingerprints;
+        keys = new long[oldKeys.length * 2];
+        fingerprints = new long[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == 0) continue;
+            int slot = find(oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            fingerprints[slot] = oldFingerprints[i];
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package org.swissbib.linked.mf.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * <p>Maps terms (IRIs, blank node labels, ...) to dense integer ids. The terms are stored UTF-8 encoded in a direct
+ * buffer outside of the Java heap, so a large number of terms neither weighs on the heap nor on the garbage
+ * collector. Lookups hash and compare the encoded bytes; a term is materialised as string only if it is requested by
+ * its id.</p>
+ * <p>Ids are assigned in ascending order starting with 0 and can therefore be used as indexes into arrays or lists.
+ * Instances are not thread-safe.</p>
+ */
+public final class TermDictionary {
+
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    private static final int INITIAL_TERMS = 1 << 10;
+
+    private ByteBuffer bytes = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+    private int used;
+    private int[] ends = new int[INITIAL_TERMS];        // End of term in bytes, indexed by id
+    private int[] hashes = new int[INITIAL_TERMS];      // Hash of term, indexed by id
+    private int[] slots = new int[INITIAL_TERMS * 2];   // Open addressing table holding id + 1 (0 = empty)
+    private int size;
+    private byte[] scratch = new byte[256];
+
+    /**
+     * Gets the id of a term, adding the term if it isn't in the dictionary yet
+     *
+     * @param term Term
+     * @return Id of term
+     */
+    public int add(CharSequence term) {
+        int end = encode(term);
+        int hash = hash(used, end);
+        int slot = find(hash, used, end);
+        if (slots[slot] != 0) return slots[slot] - 1;
+        if (size == ends.length) {
+            ends = Arrays.copyOf(ends, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        ends[size] = end;
+        hashes[size] = hash;
+        slots[slot] = ++size;
+        used = end;
+        if (size * 2 > slots.length) rehash();
+        return size - 1;
+    }
+
+    /**
+     * Gets the id of a term without adding it
+     *
+     * @param term Term
+     * @return Id of term or -1 if the term isn't in the dictionary
+     */
+    public int lookup(CharSequence term) {
+        int end = encode(term);
+        return slots[find(hash(used, end), used, end)] - 1;
+    }
+
+    /**
+     * Materialises a term
+     *
+     * @param id Id of term
+     * @return Term
+     */
+    public String term(int id) {
+        if (id < 0 || id >= size) throw new IndexOutOfBoundsException("No term with id " + id);
+        int start = id == 0 ? 0 : ends[id - 1];
+        int length = ends[id] - start;
+        if (scratch.length < length) scratch = new byte[Math.max(length, scratch.length * 2)];
+        for (int i = 0; i < length; i++) {
+            scratch[i] = bytes.get(start + i);
+        }
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return Number of terms
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all terms. The allocated memory is kept for reuse.
+     */
+    public void clear() {
+        Arrays.fill(slots, 0);
+        size = 0;
+        used = 0;
+    }
+
+    /**
+     * Encodes a term as UTF-8 behind the stored terms
+     *
+     * @return End of encoded term
+     */
+    private int encode(CharSequence term) {
+        int length = term.length();
+        ensureCapacity(used + 3 * length);
+        int p = used;
+        for (int i = 0; i < length; i++) {
+            char c = term.charAt(i);
+            if (c < 0x80) {
+                bytes.put(p++, (byte) c);
+            } else if (c < 0x800) {
+                bytes.put(p++, (byte) (0xc0 | c >> 6));
+                bytes.put(p++, (byte) (0x80 | c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(term.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, term.charAt(++i));
+                bytes.put(p++, (byte) (0xf0 | codePoint >> 18));
+                bytes.put(p++, (byte) (0x80 | codePoint >> 12 & 0x3f));
+                bytes.put(p++, (byte) (0x80 | codePoint >> 6 & 0x3f));
+                bytes.put(p++, (byte) (0x80 | codePoint & 0x3f));
+            } else {
+                bytes.put(p++, (byte) (0xe0 | c >> 12));
+                bytes.put(p++, (byte) (0x80 | c >> 6 & 0x3f));
+                bytes.put(p++, (byte) (0x80 | c & 0x3f));
+            }
+        }
+        return p;
+    }
+
+    private int hash(int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + bytes.get(i);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Finds the slot of a term, which is either the slot holding its id or the empty slot where it would be added
+     */
+    private int find(int hash, int start, int end) {
+        int mask = slots.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if (id < 0 || (hashes[id] == hash && equals(id, start, end))) return slot;
+        }
+    }
+
+    private boolean equals(int id, int start, int end) {
+        int termStart = id == 0 ? 0 : ends[id - 1];
+        if (ends[id] - termStart != end - start) return false;
+        for (int i = 0; i < end - start; i++) {
+            if (bytes.get(termStart + i) != bytes.get(start + i)) return false;
+        }
+        return true;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while (slots[slot] != 0) slot = (slot + 1) & mask;
+            slots[slot] = id + 1;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= bytes.capacity()) return;
+        ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(capacity, bytes.capacity() * 2));
+        bytes.limit(used);
+        bytes.position(0);
+        grown.put(bytes);
+        bytes = grown;
+    }
+}
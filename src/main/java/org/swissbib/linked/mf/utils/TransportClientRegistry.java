@@ -0,0 +1,120 @@
+package org.swissbib.linked.mf.utils;
+
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.transport.client.PreBuiltTransportClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Hands out Elasticsearch transport clients, one per cluster and set of nodes, so several commands of a workflow
+ * writing to the same cluster share a client, while commands writing to different clusters get their own. Commands
+ * acquire a client once and keep it, so records are processed without going through the registry.
+ * <p>
+ * Clients are reference counted and closed as soon as the last command using them has released them. Clients which
+ * are never released are closed by a shutdown hook.
+ */
+public final class TransportClientRegistry {
+
+    private final static Logger LOG = LoggerFactory.getLogger(TransportClientRegistry.class);
+    private static final Map<String, RegisteredClient> CLIENTS_BY_KEY = new HashMap<>();
+    private static final Map<TransportClient, RegisteredClient> CLIENTS = new IdentityHashMap<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(TransportClientRegistry::closeAll, "es-client-shutdown"));
+    }
+
+    // Prevents directly instantiating class.
+    private TransportClientRegistry() {}
+
+    /**
+     * Gets a client for a cluster which sniffs the further nodes of the cluster, so requests are spread over all
+     * data nodes
+     *
+     * @param nodes       Nodes of the Elasticsearch cluster (host:port)
+     * @param clustername Name of the Elasticsearch cluster
+     * @return Client, which has to be released if not needed anymore
+     */
+    public static TransportClient acquire(String[] nodes, String clustername) {
+        return acquire(nodes, clustername, true);
+    }
+
+    /**
+     * Gets a client for a cluster
+     *
+     * @param nodes       Nodes of the Elasticsearch cluster (host:port)
+     * @param clustername Name of the Elasticsearch cluster
+     * @param sniff       Connect to further nodes of the cluster or only to the given ones
+     * @return Client, which has to be released if not needed anymore
+     */
+    public static synchronized TransportClient acquire(String[] nodes, String clustername, boolean sniff) {
+        String[] sortedNodes = nodes.clone();
+        Arrays.sort(sortedNodes);
+        String key = clustername + "/" + String.join("#", sortedNodes) + (sniff ? "/sniff" : "");
+        RegisteredClient registered = CLIENTS_BY_KEY.get(key);
+        if (registered == null) {
+            LOG.info("Connecting to Elasticsearch cluster {} via {}", clustername, String.join(", ", sortedNodes));
+            Settings settings = Settings.builder()
+                    .put("cluster.name", clustername)
+                    .put("client.transport.sniff", sniff)
+                    .build();
+            TransportClient client = new PreBuiltTransportClient(settings);
+            for (String elem : sortedNodes) {
+                String[] node = elem.split(":");
+                try {
+                    client.addTransportAddress(new InetSocketTransportAddress(InetAddress.getByName(node[0]),
+                            Integer.parseInt(node[1])));
+                } catch (UnknownHostException e) {
+                    LOG.error(e.getMessage());
+                }
+            }
+            registered = new RegisteredClient(key, client);
+            CLIENTS_BY_KEY.put(key, registered);
+            CLIENTS.put(client, registered);
+        }
+        registered.references++;
+        return registered.client;
+    }
+
+    /**
+     * Releases a client. The client is closed if no one else uses it.
+     *
+     * @param client Client
+     */
+    public static synchronized void release(TransportClient client) {
+        RegisteredClient registered = CLIENTS.get(client);
+        if (registered == null || --registered.references > 0) return;
+        LOG.info("Shutting down Elasticsearch transport client");
+        CLIENTS.remove(client);
+        CLIENTS_BY_KEY.remove(registered.key);
+        client.close();
+    }
+
+    private static synchronized void closeAll() {
+        for (TransportClient client : CLIENTS.keySet()) {
+            client.close();
+        }
+        CLIENTS.clear();
+        CLIENTS_BY_KEY.clear();
+    }
+
+    private static final class RegisteredClient {
+
+        final String key;
+        final TransportClient client;
+        int references;
+
+        RegisteredClient(String key, TransportClient client) {
+            this.key = key;
+            this.client = client;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package org.swissbib.linked.mf.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer which encodes characters as UTF-8 while they are appended. Encoders serialise their records
+ * into a buffer which is reset and reused for the next record, so no intermediate strings have to be built.
+ */
+public final class Utf8Buffer {
+
+    private byte[] bytes;
+    private int length;
+
+    /**
+     * @param capacity Initial capacity in bytes
+     */
+    public Utf8Buffer(int capacity) {
+        bytes = new byte[capacity];
+    }
+
+    /**
+     * Appends characters
+     *
+     * @param chars Characters
+     * @return This buffer
+     */
+    public Utf8Buffer append(CharSequence chars) {
+        return append(chars, 0, chars.length());
+    }
+
+    /**
+     * Appends a range of characters
+     *
+     * @param chars Characters
+     * @param start Position of first character
+     * @param end   Position after last character
+     * @return This buffer
+     */
+    public Utf8Buffer append(CharSequence chars, int start, int end) {
+        ensureCapacity(length + 3 * (end - start));
+        byte[] b = bytes;
+        int p = length;
+        for (int i = start; i < end; i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                b[p++] = (byte) c;
+            } else if (c < 0x800) {
+                b[p++] = (byte) (0xc0 | c >> 6);
+                b[p++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+                b[p++] = (byte) (0xf0 | codePoint >> 18);
+                b[p++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                b[p++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                b[p++] = (byte) (0x80 | codePoint & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                b[p++] = '?';
+            } else {
+                b[p++] = (byte) (0xe0 | c >> 12);
+                b[p++] = (byte) (0x80 | c >> 6 & 0x3f);
+                b[p++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        length = p;
+        return this;
+    }
+
+    /**
+     * Appends an ASCII character
+     *
+     * @param c Character in the range of ASCII
+     * @return This buffer
+     */
+    public Utf8Buffer appendAscii(char c) {
+        ensureCapacity(length + 1);
+        bytes[length++] = (byte) c;
+        return this;
+    }
+
+    /**
+     * Appends the content of another buffer
+     *
+     * @param buffer Buffer
+     * @return This buffer
+     */
+    public Utf8Buffer append(Utf8Buffer buffer) {
+        ensureCapacity(length + buffer.length);
+        System.arraycopy(buffer.bytes, 0, bytes, length, buffer.length);
+        length += buffer.length;
+        return this;
+    }
+
+    /**
+     * Appends a decimal number
+     *
+     * @param number Number
+     * @return This buffer
+     */
+    public Utf8Buffer append(long number) {
+        if (number < 0) {
+            if (number == Long.MIN_VALUE) return append(Long.toString(number));
+            appendAscii('-');
+            number = -number;
+        }
+        int digits = 1;
+        for (long n = number; n >= 10; n /= 10) digits++;
+        ensureCapacity(length + digits);
+        for (int p = length + digits - 1; p >= length; p--) {
+            bytes[p] = (byte) ('0' + number % 10);
+            number /= 10;
+        }
+        length += digits;
+        return this;
+    }
+
+    /**
+     * @return Number of bytes in the buffer
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Empties the buffer. The allocated memory is kept for reuse.
+     */
+    public void reset() {
+        length = 0;
+    }
+
+    /**
+     * @return Backing array, holding the content up to {@link #length()}. It is replaced as soon as the buffer grows.
+     */
+    public byte[] array() {
+        return bytes;
+    }
+
+    /**
+     * @return Copy of the content
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, length);
+    }
+
+    /**
+     * Writes the content to a stream
+     *
+     * @param out Stream
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, length);
+    }
+
+    /**
+     * @return Content decoded as string
+     */
+    @Override
+    public String toString() {
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.swissbib.linked.mf.writer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Controls the size of bulk requests and the number of concurrent requests in flight following the AIMD principle:
+ * As long as Elasticsearch keeps up, the bulk size grows by a constant step and, once the maximal bulk size is
+ * reached, the number of concurrent requests by one. Slow or rejected bulks halve the bulk size; rejections and long
+ * waits besides the time Elasticsearch took to process a bulk also decrease the number of concurrent requests.
+ */
+class AdaptiveBulkSizing {
+
+    private final static Logger LOG = LoggerFactory.getLogger(AdaptiveBulkSizing.class);
+
+    private final long minBulkSize;
+    private final long maxBulkSize;
+    private final int maxConcurrentRequests;
+    private final long targetLatency;
+
+    private long bulkSize;
+    private int concurrentRequests = 1;
+    private int inFlight;
+
+    /**
+     * @param minBulkSize           Minimal and initial size of a bulk in bytes, also step of additive increase
+     * @param maxBulkSize           Maximal size of a bulk in bytes
+     * @param maxConcurrentRequests Maximal number of concurrent requests
+     * @param targetLatency         Time in milliseconds a bulk should take at most
+     */
+    AdaptiveBulkSizing(long minBulkSize, long maxBulkSize, int maxConcurrentRequests, long targetLatency) {
+        this.minBulkSize = minBulkSize;
+        this.maxBulkSize = Math.max(minBulkSize, maxBulkSize);
+        this.maxConcurrentRequests = Math.max(1, maxConcurrentRequests);
+        this.targetLatency = targetLatency;
+        this.bulkSize = minBulkSize;
+    }
+
+    /**
+     * @return Current size of a bulk in bytes
+     */
+    synchronized long bulkSize() {
+        return bulkSize;
+    }
+
+    /**
+     * @return Current number of concurrent requests
+     */
+    synchronized int concurrentRequests() {
+        return concurrentRequests;
+    }
+
+    /**
+     * Waits until another request may be sent and registers it as being in flight
+     */
+    synchronized void acquire() throws InterruptedException {
+        while (inFlight >= concurrentRequests) wait();
+        inFlight++;
+    }
+
+    /**
+     * Registers the completion of a request and adapts bulk size and number of concurrent requests
+     *
+     * @param took       Time in milliseconds Elasticsearch took to process the bulk
+     * @param roundTrip  Time in milliseconds from sending the request to receiving the response
+     * @param rejections Number of items rejected due to full queues
+     */
+    synchronized void release(long took, long roundTrip, int rejections) {
+        inFlight--;
+        if (rejections > 0) {
+            bulkSize = Math.max(minBulkSize, bulkSize / 2);
+            concurrentRequests = Math.max(1, concurrentRequests / 2);
+        } else if (took > targetLatency) {
+            bulkSize = Math.max(minBulkSize, bulkSize / 2);
+        } else if (roundTrip - took > targetLatency) {
+            concurrentRequests = Math.max(1, concurrentRequests - 1);
+        } else if (bulkSize < maxBulkSize) {
+            bulkSize = Math.min(maxBulkSize, bulkSize + minBulkSize);
+        } else if (concurrentRequests < maxConcurrentRequests) {
+            concurrentRequests++;
+        }
+        LOG.debug("Bulk took {} ms ({} ms round trip, {} rejections): Bulk size {} bytes, {} concurrent requests",
+                took, roundTrip, rejections, bulkSize, concurrentRequests);
+        notifyAll();
+    }
+
+    /**
+     * Waits until all requests in flight are completed
+     */
+    synchronized void awaitIdle() throws InterruptedException {
+        while (inFlight > 0) wait();
+    }
+}
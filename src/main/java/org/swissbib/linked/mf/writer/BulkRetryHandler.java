@@ -0,0 +1,234 @@
+package org.swissbib.linked.mf.writer;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.rest.RestStatus;
+import org.metafacture.framework.MetafactureException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Handles the failed items of bulk requests: Items rejected because of full queues or unavailable shards are sent
+ * again in a new bulk request after an exponentially growing delay. Items which fail for other reasons (e.g. mapping
+ * errors) or still fail after the last retry are written to a gzipped dead letter file in bulk format, which can be
+ * replayed later, or are logged if there is no such file.
+ */
+class BulkRetryHandler {
+
+    private final static Logger LOG = LoggerFactory.getLogger(BulkRetryHandler.class);
+
+    private final Client client;
+    private final BackoffPolicy backoffPolicy;
+    private final String deadLetterFile;
+    private final ScheduledExecutorService scheduler;
+    private Writer deadLetters;
+    private int pendingRetries;
+    private long deadLetterCount;
+
+    /**
+     * @param client         Elasticsearch client
+     * @param retryDelay     Delay in milliseconds before the first retry
+     * @param maxRetries     Maximal number of retries of an item
+     * @param deadLetterFile Path to dead letter file, or null if failed items should only be logged
+     */
+    BulkRetryHandler(Client client, long retryDelay, int maxRetries, String deadLetterFile) {
+        this.client = client;
+        this.backoffPolicy = BackoffPolicy.exponentialBackoff(TimeValue.timeValueMillis(retryDelay), maxRetries);
+        this.deadLetterFile = deadLetterFile;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "bulk-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Handles the failed items of a response to a bulk request
+     *
+     * @param bulkRequest  Bulk request
+     * @param bulkResponse Response to bulk request
+     */
+    void handle(BulkRequest bulkRequest, BulkResponse bulkResponse) {
+        handle(bulkRequest, bulkResponse, backoffPolicy.iterator());
+    }
+
+    /**
+     * Handles a bulk request which failed as a whole
+     *
+     * @param bulkRequest Bulk request
+     * @param failure     Cause of failure
+     */
+    void handle(BulkRequest bulkRequest, Throwable failure) {
+        handle(bulkRequest, failure, backoffPolicy.iterator());
+    }
+
+    private void handle(BulkRequest bulkRequest, BulkResponse bulkResponse, Iterator<TimeValue> backoff) {
+        if (!bulkResponse.hasFailures()) return;
+        BulkRequest retryRequest = new BulkRequest();
+        for (BulkItemResponse item : bulkResponse.getItems()) {
+            if (!item.isFailed()) continue;
+            DocWriteRequest<?> request = bulkRequest.requests().get(item.getItemId());
+            RestStatus status = item.getFailure().getStatus();
+            if ((status == RestStatus.TOO_MANY_REQUESTS || status == RestStatus.SERVICE_UNAVAILABLE) &&
+                    backoff.hasNext()) {
+                retryRequest.add(request);
+            } else {
+                deadLetter(request, item.getFailureMessage());
+            }
+        }
+        if (retryRequest.numberOfActions() > 0) schedule(retryRequest, backoff);
+    }
+
+    private void handle(BulkRequest bulkRequest, Throwable failure, Iterator<TimeValue> backoff) {
+        if (ExceptionsHelper.unwrapCause(failure) instanceof EsRejectedExecutionException && backoff.hasNext()) {
+            schedule(bulkRequest, backoff);
+        } else {
+            for (DocWriteRequest<?> request : bulkRequest.requests()) {
+                deadLetter(request, failure.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Sends failed items again after the next delay of the backoff policy
+     */
+    private void schedule(BulkRequest retryRequest, Iterator<TimeValue> backoff) {
+        TimeValue delay = backoff.next();
+        LOG.debug("Retrying {} failed items in {}", retryRequest.numberOfActions(), delay);
+        synchronized (this) {
+            pendingRetries++;
+        }
+        scheduler.schedule(() -> client.bulk(retryRequest, new ActionListener<BulkResponse>() {
+
+            @Override
+            public void onResponse(BulkResponse bulkResponse) {
+                try {
+                    handle(retryRequest, bulkResponse, backoff);
+                } finally {
+                    retryCompleted();
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                try {
+                    handle(retryRequest, e, backoff);
+                } finally {
+                    retryCompleted();
+                }
+            }
+        }), delay.millis(), TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void retryCompleted() {
+        pendingRetries--;
+        notifyAll();
+    }
+
+    /**
+     * Waits until all retries are completed
+     */
+    synchronized void awaitRetries() throws InterruptedException {
+        while (pendingRetries > 0) wait();
+    }
+
+    /**
+     * Writes an item which can't be indexed to the dead letter file
+     *
+     * @param request Failed item
+     * @param reason  Reason of failure
+     */
+    private synchronized void deadLetter(DocWriteRequest<?> request, String reason) {
+        LOG.error("Failed to {} document {}: {}", request.opType().getLowercase(), request.id(), reason);
+        deadLetterCount++;
+        if (deadLetterFile == null) return;
+        try {
+            if (deadLetters == null) {
+                deadLetters = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(deadLetterFile)),
+                        StandardCharsets.UTF_8);
+            }
+            XContentBuilder action = XContentFactory.jsonBuilder().startObject()
+                    .startObject(request.opType().getLowercase())
+                    .field("_index", request.index())
+                    .field("_type", request.type())
+                    .field("_id", request.id());
+            if (request.routing() != null) action.field("_routing", request.routing());
+            deadLetters.write(action.endObject().endObject().string());
+            deadLetters.write('\n');
+            if (request instanceof IndexRequest) {
+                IndexRequest indexRequest = (IndexRequest) request;
+                deadLetters.write(XContentHelper.convertToJson(indexRequest.source(), false,
+                        indexRequest.getContentType()));
+                deadLetters.write('\n');
+            } else if (request instanceof UpdateRequest && ((UpdateRequest) request).doc() != null) {
+                UpdateRequest updateRequest = (UpdateRequest) request;
+                deadLetters.write("{\"doc\":");
+                deadLetters.write(XContentHelper.convertToJson(updateRequest.doc().source(), false,
+                        updateRequest.doc().getContentType()));
+                if (updateRequest.docAsUpsert()) deadLetters.write(",\"doc_as_upsert\":true");
+                deadLetters.write("}\n");
+            } else if (!(request instanceof DeleteRequest)) {
+                LOG.warn("Can't write {} request to dead letter file", request.opType().getLowercase());
+            }
+        } catch (IOException e) {
+            // Called from bulk listeners, which mustn't fail; the item is counted as failed anyway
+            LOG.error("Can't write document {} to dead letter file {}: {}", request.id(), deadLetterFile,
+                    e.getMessage());
+        }
+    }
+
+    /**
+     * @return Number of items which couldn't be indexed
+     */
+    synchronized long deadLetterCount() {
+        return deadLetterCount;
+    }
+
+    /**
+     * Waits for all retries and closes the dead letter file
+     */
+    void close() {
+        try {
+            awaitRetries();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.error("Interrupted while waiting for retries of failed items");
+        }
+        scheduler.shutdown();
+        synchronized (this) {
+            if (deadLetters == null) return;
+            try {
+                deadLetters.close();
+            } catch (IOException e) {
+                throw new MetafactureException("Can't close dead letter file " + deadLetterFile, e);
+            }
+            deadLetters = null;
+            LOG.warn("Wrote {} failed items to {}", deadLetterCount, deadLetterFile);
+        }
+    }
+}
@@ -1,24 +1,66 @@
 package org.swissbib.linked.mf.writer;
 
+import org.metafacture.framework.MetafactureException;
 import org.metafacture.framework.annotations.Description;
 import org.metafacture.framework.annotations.In;
 import org.metafacture.framework.annotations.Out;
 import org.metafacture.io.ConfigurableObjectWriter;
 import org.metafacture.io.FileCompression;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkProcessor;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.Client;
 import org.elasticsearch.client.transport.TransportClient;
 import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.RestStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.swissbib.linked.mf.utils.TransportClientSingleton;
+import org.swissbib.linked.mf.pipe.ESBulkEncoder;
+import org.swissbib.linked.mf.utils.TransportClientRegistry;
 
+import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 
 /**
- * Writes Elasticsearch Bulk API compliant strings to Elasticsearch Index
+ * Writes Elasticsearch Bulk API compliant strings to Elasticsearch Index. Records can be passed as strings, as UTF-8
+ * encoded byte arrays or as {@link BytesReference}s, the latter two being handed over to the bulk processor without
+ * being copied. Records in SMILE, as written by encode-esbulk, are recognised by their header and submitted as such.
+ * <p>
+ * In adaptive mode, bulks are limited by size in bytes instead of by number of records. Bulk size and number of
+ * concurrent requests are adapted to the time Elasticsearch takes to process the bulks and to rejections.
+ * <p>
+ * Items of a bulk which are rejected by Elasticsearch are retried with exponential backoff. Items which can't be
+ * indexed are written to a dead letter file in bulk format.
+ * <p>
+ * In load mode, refreshes and replicas of the indices are disabled while loading and restored afterwards.
+ * <p>
+ * In rebuild mode, records without index in their bulk action are loaded into a new version of the index behind an
+ * alias, and the alias is swapped to the new version after loading.
+ * <p>
+ * In shard-aware mode, the primary shard of every document is determined on the client side, and documents are sent
+ * in separate bulks to the nodes holding their primary shards.
+ * <p>
+ * If encode-esbulk skips unchanged documents, their pending fingerprints are committed once all records have been
+ * indexed.
  *
  * @author Sebastian Schüpbach, project swissbib, Basel
  */
@@ -28,13 +70,43 @@ import java.nio.charset.Charset;
 public class ESBulkIndexer<T> implements ConfigurableObjectWriter<T> {
 
     private static final String SET_COMPRESSION_ERROR = "Cannot compress Triple store";
+    private static final byte[] EMPTY_RECORD = {'{', '}', '\n'};
     private final static Logger LOG = LoggerFactory.getLogger(ESBulkIndexer.class);
     private String[] esNodes = {"localhost:9300"};
     private String esClustername = "linked-swissbib";
     private int recordsPerUpload = 2000;
 
+    private boolean adaptive = false;
+    private long minBulkSize = new ByteSizeValue(1, ByteSizeUnit.MB).getBytes();
+    private long maxBulkSize = new ByteSizeValue(15, ByteSizeUnit.MB).getBytes();
+    private int maxConcurrentRequests = 4;
+    private long targetLatency = 1000;
+    private int maxRetries = 8;
+    private long retryDelay = 500;
+    private String deadLetterFile;
+    private boolean loadMode = false;
+    private int forceMergeSegments = 0;
+    private TimeValue healthTimeout = TimeValue.timeValueMinutes(30);
+    private String rebuildAlias;
+    private String indexDefinition;
+    private int replicas = 1;
+    private int keepVersions = 2;
+    private boolean sniff = true;
+    private boolean shardAware = false;
+    private long routingRefresh = 60000;
+    private String fingerprintFile;
+
     private TransportClient esClient;
     private BulkProcessor bulkProcessor;
+    private AdaptiveBulkSizing sizing;
+    private BulkRetryHandler retryHandler;
+    private LoadModeSettings loadModeSettings;
+    private IndexRebuild rebuild;
+    private String defaultIndex;                    // Index of records without index in their bulk action
+    private ShardRouter shardRouter;
+    private final Map<String, BulkProcessor> nodeProcessors = new HashMap<>();  // Bulk processors by node id
+    private BulkRequest pendingRequest;
+    private long unindexed;                         // Records which couldn't be added and bulks which didn't complete
 
 
     public void setEsClustername(final String esClustername) {
@@ -55,6 +127,120 @@ public class ESBulkIndexer<T> implements ConfigurableObjectWriter<T> {
     }
 
 
+    public void setAdaptive(final String adaptive) {
+        this.adaptive = Boolean.parseBoolean(adaptive);
+        LOG.debug("Settings - Adapt bulk size and concurrent requests: {}", adaptive);
+    }
+
+
+    public void setMinBulkSize(final String minBulkSize) {
+        this.minBulkSize = ByteSizeValue.parseBytesSizeValue(minBulkSize, "minBulkSize").getBytes();
+        LOG.debug("Settings - Set minimal bulk size: {}", minBulkSize);
+    }
+
+
+    public void setMaxBulkSize(final String maxBulkSize) {
+        this.maxBulkSize = ByteSizeValue.parseBytesSizeValue(maxBulkSize, "maxBulkSize").getBytes();
+        LOG.debug("Settings - Set maximal bulk size: {}", maxBulkSize);
+    }
+
+
+    public void setMaxConcurrentRequests(final int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        LOG.debug("Settings - Set maximal number of concurrent requests: {}", maxConcurrentRequests);
+    }
+
+
+    public void setTargetLatency(final int targetLatency) {
+        this.targetLatency = targetLatency;
+        LOG.debug("Settings - Set target latency of bulks: {} ms", targetLatency);
+    }
+
+
+    public void setMaxRetries(final int maxRetries) {
+        this.maxRetries = maxRetries;
+        LOG.debug("Settings - Set maximal number of retries of failed items: {}", maxRetries);
+    }
+
+
+    public void setRetryDelay(final int retryDelay) {
+        this.retryDelay = retryDelay;
+        LOG.debug("Settings - Set delay before first retry of failed items: {} ms", retryDelay);
+    }
+
+
+    public void setDeadLetterFile(final String deadLetterFile) {
+        this.deadLetterFile = deadLetterFile;
+        LOG.debug("Settings - Set dead letter file: {}", deadLetterFile);
+    }
+
+
+    public void setLoadMode(final String loadMode) {
+        this.loadMode = Boolean.parseBoolean(loadMode);
+        LOG.debug("Settings - Disable refreshes and replicas while loading: {}", loadMode);
+    }
+
+
+    public void setForceMergeSegments(final int forceMergeSegments) {
+        this.forceMergeSegments = forceMergeSegments;
+        LOG.debug("Settings - Set number of segments to force merge to after loading: {}", forceMergeSegments);
+    }
+
+
+    public void setHealthTimeout(final String healthTimeout) {
+        this.healthTimeout = TimeValue.parseTimeValue(healthTimeout, "healthTimeout");
+        LOG.debug("Settings - Set time to wait for green health after loading: {}", healthTimeout);
+    }
+
+
+    public void setRebuildAlias(final String rebuildAlias) {
+        this.rebuildAlias = rebuildAlias;
+        LOG.debug("Settings - Rebuild index behind alias: {}", rebuildAlias);
+    }
+
+
+    public void setIndexDefinition(final String indexDefinition) {
+        this.indexDefinition = indexDefinition;
+        LOG.debug("Settings - Set definition of rebuilt index: {}", indexDefinition);
+    }
+
+
+    public void setReplicas(final int replicas) {
+        this.replicas = replicas;
+        LOG.debug("Settings - Set number of replicas of rebuilt index: {}", replicas);
+    }
+
+
+    public void setKeepVersions(final int keepVersions) {
+        this.keepVersions = keepVersions;
+        LOG.debug("Settings - Set number of versions of rebuilt index to keep: {}", keepVersions);
+    }
+
+
+    public void setSniff(final String sniff) {
+        this.sniff = Boolean.parseBoolean(sniff);
+        LOG.debug("Settings - Sniff further nodes of cluster: {}", sniff);
+    }
+
+
+    public void setShardAware(final String shardAware) {
+        this.shardAware = Boolean.parseBoolean(shardAware);
+        LOG.debug("Settings - Send bulks to nodes holding primary shards: {}", shardAware);
+    }
+
+
+    public void setRoutingRefresh(final int routingRefresh) {
+        this.routingRefresh = routingRefresh;
+        LOG.debug("Settings - Set interval of reloading routing table: {} ms", routingRefresh);
+    }
+
+
+    public void setFingerprintFile(final String fingerprintFile) {
+        this.fingerprintFile = fingerprintFile;
+        LOG.debug("Settings - Commit document fingerprints to: {}", fingerprintFile);
+    }
+
+
     @Override
     public String getEncoding() {
         return Charset.defaultCharset().toString();
@@ -132,36 +318,179 @@ public class ESBulkIndexer<T> implements ConfigurableObjectWriter<T> {
 
     public void process(T obj) {
         LOG.trace("Adding record to bulk processor");
-        esClient = TransportClientSingleton.getEsClient(esNodes, this.esClustername);
-        if (bulkProcessor == null) createTransportClient();
+        if (esClient == null) createTransportClient();
 
-        if (!obj.equals("{}\n")) {
-            BytesArray ba = new BytesArray((String) obj);
+        BytesReference bytes = toBytes(obj);
+        if (bytes != null) {
             try {
-                this.bulkProcessor.add(ba, null, null);
+                if (adaptive) {
+                    pendingRequest.add(bytes, defaultIndex, null, xContentType(bytes));
+                    if (pendingRequest.estimatedSizeInBytes() >= sizing.bulkSize()) sendPendingRequest();
+                } else if (shardRouter != null) {
+                    BulkRequest parsedRequest = new BulkRequest();
+                    parsedRequest.add(bytes, defaultIndex, null, xContentType(bytes));
+                    for (DocWriteRequest<?> request : parsedRequest.requests()) {
+                        bulkProcessor(shardRouter.primaryNode(request)).add(request);
+                    }
+                } else {
+                    this.bulkProcessor.add(bytes, defaultIndex, null, xContentType(bytes));
+                }
             } catch (Exception e) {
+                unindexed++;
                 LOG.error(e.getMessage());
             }
         }
     }
 
+    /**
+     * Sends the pending bulk request as soon as the number of requests in flight permits it
+     */
+    private void sendPendingRequest() throws InterruptedException {
+        if (pendingRequest.numberOfActions() == 0) return;
+        final BulkRequest bulkRequest = pendingRequest;
+        pendingRequest = new BulkRequest();
+        sizing.acquire();
+        LOG.debug("Bulk requests to be processed: {} ({} bytes)", bulkRequest.numberOfActions(),
+                bulkRequest.estimatedSizeInBytes());
+        if (loadModeSettings != null) loadModeSettings.prepare(bulkRequest);
+        final long start = System.nanoTime();
+        esClient.bulk(bulkRequest, new ActionListener<BulkResponse>() {
+
+            @Override
+            public void onResponse(BulkResponse bulkResponse) {
+                int rejections = 0;
+                if (bulkResponse.hasFailures()) {
+                    for (BulkItemResponse item : bulkResponse.getItems()) {
+                        if (item.isFailed() && item.getFailure().getStatus() == RestStatus.TOO_MANY_REQUESTS)
+                            rejections++;
+                    }
+                }
+                try {
+                    retryHandler.handle(bulkRequest, bulkResponse);
+                } finally {
+                    sizing.release(bulkResponse.getTookInMillis(), (System.nanoTime() - start) / 1000000,
+                            rejections);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                long roundTrip = (System.nanoTime() - start) / 1000000;
+                boolean rejected = ExceptionsHelper.unwrapCause(e) instanceof EsRejectedExecutionException;
+                LOG.error("Some errors were reported: {}", e.getMessage());
+                try {
+                    retryHandler.handle(bulkRequest, e);
+                } finally {
+                    sizing.release(roundTrip, roundTrip, rejected ? bulkRequest.numberOfActions() : 0);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends the pending bulk request and waits until all requests in flight are completed
+     */
+    private void flushAdaptive() {
+        try {
+            sendPendingRequest();
+            sizing.awaitIdle();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            unindexed++;
+            LOG.error("Interrupted while waiting for bulk requests");
+        }
+    }
+
+    /**
+     * Wraps a record in a bytes reference
+     *
+     * @param obj Record as string, byte array or bytes reference
+     * @return Bytes reference or null if the record is empty
+     */
+    private static BytesReference toBytes(Object obj) {
+        if (obj instanceof byte[]) {
+            byte[] bytes = (byte[]) obj;
+            return Arrays.equals(bytes, EMPTY_RECORD) ? null : new BytesArray(bytes);
+        } else if (obj instanceof BytesReference) {
+            BytesReference bytes = (BytesReference) obj;
+            return new BytesArray(EMPTY_RECORD).equals(bytes) ? null : bytes;
+        } else {
+            return obj.equals("{}\n") ? null : new BytesArray((String) obj);
+        }
+    }
+
+    /**
+     * Determines the content type of a record by its first bytes. SMILE documents start with the header ":)\n",
+     * anything else is taken for JSON.
+     *
+     * @param bytes Record
+     * @return SMILE or JSON
+     */
+    private static XContentType xContentType(BytesReference bytes) {
+        return bytes.length() >= 3 && bytes.get(0) == ':' && bytes.get(1) == ')' && bytes.get(2) == '\n' ?
+                XContentType.SMILE : XContentType.JSON;
+    }
+
     private void createTransportClient() {
+        this.esClient = TransportClientRegistry.acquire(esNodes, esClustername, sniff);
+        this.retryHandler = new BulkRetryHandler(esClient, retryDelay, maxRetries, deadLetterFile);
+        if (loadMode) this.loadModeSettings = new LoadModeSettings(esClient, forceMergeSegments, healthTimeout);
+        if (rebuildAlias != null) {
+            if (fingerprintFile != null) {
+                throw new MetafactureException("Can't rebuild index " + rebuildAlias + " from records whose " +
+                        "unchanged documents are skipped, disable fingerprints of encode-esbulk");
+            }
+            this.rebuild = new IndexRebuild(esClient, rebuildAlias, indexDefinition, replicas, keepVersions,
+                    healthTimeout);
+            this.defaultIndex = rebuild.createIndex();
+        }
+        if (adaptive) {
+            if (shardAware) LOG.warn("Shard-aware mode isn't supported in adaptive mode and is ignored");
+            this.sizing = new AdaptiveBulkSizing(minBulkSize, maxBulkSize, maxConcurrentRequests, targetLatency);
+            this.pendingRequest = new BulkRequest();
+            return;
+        }
+        if (shardAware) this.shardRouter = new ShardRouter(esClient, esClustername, routingRefresh);
+        this.bulkProcessor = buildBulkProcessor(esClient);
+    }
+
+    /**
+     * Gets the bulk processor sending bulks to a node
+     *
+     * @param nodeId Id of node, or null for the default bulk processor
+     * @return Bulk processor
+     */
+    private BulkProcessor bulkProcessor(String nodeId) {
+        if (nodeId == null) return bulkProcessor;
+        BulkProcessor nodeProcessor = nodeProcessors.get(nodeId);
+        if (nodeProcessor == null) {
+            Client nodeClient = shardRouter.nodeClient(nodeId);
+            if (nodeClient == null) return bulkProcessor;
+            nodeProcessor = buildBulkProcessor(nodeClient);
+            nodeProcessors.put(nodeId, nodeProcessor);
+        }
+        return nodeProcessor;
+    }
 
-        this.bulkProcessor = BulkProcessor.builder(this.esClient, new BulkProcessor.Listener() {
+    private BulkProcessor buildBulkProcessor(Client client) {
+        return BulkProcessor.builder(client, new BulkProcessor.Listener() {
 
             @Override
             public void beforeBulk(long l, BulkRequest bulkRequest) {
                 LOG.debug("Bulk requests to be processed: {}", bulkRequest.numberOfActions());
+                if (loadModeSettings != null) loadModeSettings.prepare(bulkRequest);
             }
 
             @Override
             public void afterBulk(long l, BulkRequest bulkRequest, BulkResponse bulkResponse) {
                 LOG.debug("Indexing took {} ms", bulkResponse.getTookInMillis());
+                retryHandler.handle(bulkRequest, bulkResponse);
             }
 
             @Override
             public void afterBulk(long l, BulkRequest bulkRequest, Throwable throwable) {
                 LOG.error("Some errors were reported: {}", throwable.getMessage());
+                retryHandler.handle(bulkRequest, throwable);
             }
         })
                 // Header and body line
@@ -172,14 +501,76 @@ public class ESBulkIndexer<T> implements ConfigurableObjectWriter<T> {
 
     @Override
     public void resetStream() {
-        this.bulkProcessor.flush();
+        if (sizing != null) {
+            flushAdaptive();
+        } else if (bulkProcessor != null) {
+            this.bulkProcessor.flush();
+            for (BulkProcessor nodeProcessor : nodeProcessors.values()) {
+                nodeProcessor.flush();
+            }
+        }
     }
 
 
     @Override
     public void closeStream() {
         LOG.info("Shutting down Elasticsearch bulk processor.");
-        this.bulkProcessor.flush();
+        if (sizing != null) {
+            flushAdaptive();
+        } else if (bulkProcessor != null) {
+            try {
+                awaitClose(bulkProcessor);
+                for (BulkProcessor nodeProcessor : nodeProcessors.values()) {
+                    awaitClose(nodeProcessor);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                unindexed++;
+                LOG.error("Interrupted while waiting for bulk requests");
+            }
+            bulkProcessor = null;
+            nodeProcessors.clear();
+        }
+        if (retryHandler != null) retryHandler.close();
+        if (loadModeSettings != null) loadModeSettings.restore();
+        long failures = unindexed + (retryHandler == null ? 0 : retryHandler.deadLetterCount());
+        if (rebuild != null) rebuild.promote(failures);
+        if (shardRouter != null) shardRouter.close();
+        if (fingerprintFile != null) commitFingerprints(failures);
+        if (esClient != null) TransportClientRegistry.release(esClient);
+        esClient = null;
+    }
+
+    private void awaitClose(BulkProcessor processor) throws InterruptedException {
+        if (!processor.awaitClose(10, TimeUnit.MINUTES)) {
+            unindexed++;
+            LOG.error("Bulk requests still not completed after 10 minutes, counting them as failed");
+        }
+    }
+
+    /**
+     * Replaces the fingerprints of the last run by the pending ones of encode-esbulk, if all records were indexed.
+     * Otherwise, the pending fingerprints are discarded, so the documents are sent again in the next run.
+     *
+     * @param failedItems Number of records, items or bulks which couldn't be indexed
+     */
+    private void commitFingerprints(long failedItems) {
+        Path pending = Paths.get(fingerprintFile + ESBulkEncoder.PENDING_SUFFIX);
+        if (!Files.exists(pending)) {
+            LOG.warn("No pending fingerprints in {}", pending);
+            return;
+        }
+        try {
+            if (failedItems > 0) {
+                LOG.warn("Discarding fingerprints of this run, as {} items couldn't be indexed", failedItems);
+                Files.delete(pending);
+            } else {
+                Files.move(pending, Paths.get(fingerprintFile), StandardCopyOption.REPLACE_EXISTING);
+                LOG.info("Committed document fingerprints to {}", fingerprintFile);
+            }
+        } catch (IOException e) {
+            throw new MetafactureException("Can't commit fingerprints to " + fingerprintFile, e);
+        }
     }
 
 }
@@ -1,10 +1,12 @@
 package org.swissbib.linked.mf.writer;
 
+import org.metafacture.framework.MetafactureException;
 import org.metafacture.framework.annotations.Description;
 import org.metafacture.framework.annotations.In;
 import org.metafacture.framework.annotations.Out;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 /**
  * An Elasticsearch Bulk API compliant output.
@@ -29,14 +31,35 @@ public class ESBulkWriter<T> extends CustomWriter<T> {
     @Override
     public void process(T obj) {
 
+        String text = toText(obj);
         if (firstObject) {
             this.openOutFile();
             firstObject = false;
         }
-        this.writeText((String) obj);
+        this.writeText(text);
 
     }
 
+    /**
+     * Gets a record as text. Records emitted as UTF-8 encoded byte arrays are decoded, while records in SMILE format
+     * can't be written to a text file.
+     *
+     * @param obj Record as string or byte array
+     * @return Record as string
+     */
+    private static String toText(Object obj) {
+        if (obj instanceof String) return (String) obj;
+        if (obj instanceof byte[]) {
+            byte[] bytes = (byte[]) obj;
+            if (bytes.length >= 3 && bytes[0] == ':' && bytes[1] == ')' && bytes[2] == '\n') {
+                throw new MetafactureException("Records in SMILE format can't be written to a file, " +
+                        "set format of encode-esbulk to json");
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        throw new MetafactureException("Expected record as string or byte array, got " + obj.getClass().getName());
+    }
+
     @Override
     void writeText(String text) {
 
@@ -0,0 +1,154 @@
+package org.swissbib.linked.mf.writer;
+
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.metafacture.framework.MetafactureException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Rebuilds an index behind an alias: The records are loaded into a new index named after the alias and a timestamp,
+ * which is created without replicas and refreshes. After loading, replicas and refreshes are enabled and the new
+ * index is verified. Only then, the alias is swapped atomically from the old to the new index, so searches never see
+ * a half-finished index. Old versions are pruned except for a configurable number of most recent ones.
+ */
+class IndexRebuild {
+
+    private final static Logger LOG = LoggerFactory.getLogger(IndexRebuild.class);
+    private static final String TIMESTAMP_FORMAT = "yyyyMMddHHmmss";
+
+    private final Client client;
+    private final String alias;
+    private final String indexDefinition;
+    private final int replicas;
+    private final int keepVersions;
+    private final TimeValue healthTimeout;
+    private String index;
+
+    /**
+     * @param client          Elasticsearch client
+     * @param alias           Alias to be swapped to the new index
+     * @param indexDefinition Path to JSON file with settings and mappings of the new index, or null
+     * @param replicas        Number of replicas of the new index after loading
+     * @param keepVersions    Number of most recent versions of the index to keep, including the new one
+     * @param healthTimeout   Time to wait for green health of the new index at most
+     */
+    IndexRebuild(Client client, String alias, String indexDefinition, int replicas, int keepVersions,
+                 TimeValue healthTimeout) {
+        this.client = client;
+        this.alias = alias;
+        this.indexDefinition = indexDefinition;
+        this.replicas = replicas;
+        this.keepVersions = Math.max(1, keepVersions);
+        this.healthTimeout = healthTimeout;
+    }
+
+    /**
+     * Creates the new version of the index, tuned for bulk loading
+     *
+     * @return Name of new index
+     */
+    String createIndex() {
+        if (client.admin().cluster().prepareState().clear().setMetaData(true).get().getState().metaData()
+                .hasIndex(alias)) {
+            throw new MetafactureException("Can't rebuild " + alias + " behind an alias, as it is a concrete index. " +
+                    "Reindex it into a version named " + alias + "-" + TIMESTAMP_FORMAT + " and alias it first");
+        }
+        index = alias + "-" + new SimpleDateFormat(TIMESTAMP_FORMAT).format(new Date());
+        LOG.info("Creating index {} to rebuild {}", index, alias);
+        CreateIndexRequestBuilder request = client.admin().indices().prepareCreate(index);
+        if (indexDefinition != null) {
+            try {
+                request.setSource(new String(Files.readAllBytes(Paths.get(indexDefinition)), StandardCharsets.UTF_8),
+                        XContentType.JSON);
+            } catch (IOException e) {
+                throw new MetafactureException("Can't read index definition " + indexDefinition, e);
+            }
+        }
+        // Settings of the definition, e.g. shards and analysis, are kept; keys are prefixed as Elasticsearch does
+        request.setSettings(Settings.builder()
+                .put(request.request().settings())
+                .normalizePrefix("index.")
+                .put("index.number_of_replicas", 0)
+                .put("index.refresh_interval", "-1")).get();
+        return index;
+    }
+
+    /**
+     * Enables replicas and refreshes of the new index and swaps the alias to it, if loading has been successful and
+     * the index isn't empty
+     *
+     * @param failedItems Number of records, items or bulks which couldn't be indexed
+     */
+    void promote(long failedItems) {
+        client.admin().indices().prepareUpdateSettings(index).setSettings(Settings.builder()
+                .put("index.number_of_replicas", replicas)
+                .putNull("index.refresh_interval")).get();
+        client.admin().indices().prepareRefresh(index).get();
+        ClusterHealthResponse health = client.admin().cluster().prepareHealth(index)
+                .setWaitForGreenStatus().setTimeout(healthTimeout).get();
+        long documents = client.prepareSearch(index).setSize(0).get().getHits().getTotalHits();
+        if (failedItems > 0 || documents == 0 || health.isTimedOut()) {
+            LOG.error("Not swapping alias {} to index {}: {} documents, {} failures, health {}", alias, index,
+                    documents, failedItems, health.getStatus());
+            return;
+        }
+        IndicesAliasesRequestBuilder aliases = client.admin().indices().prepareAliases();
+        for (Iterator<String> it = client.admin().indices().prepareGetAliases(alias).get().getAliases().keysIt();
+             it.hasNext(); ) {
+            aliases.removeAlias(it.next(), alias);
+        }
+        aliases.addAlias(index, alias).get();
+        LOG.info("Swapped alias {} to index {} with {} documents", alias, index, documents);
+        prune();
+    }
+
+    /**
+     * Deletes old versions of the index except for the most recent ones
+     */
+    private void prune() {
+        String[] indices = client.admin().indices().prepareGetIndex().setIndices(alias + "-*").get().getIndices();
+        for (String version : obsoleteVersions(alias, indices, keepVersions, index)) {
+            LOG.info("Deleting old version {} of index {}", version, alias);
+            client.admin().indices().prepareDelete(version).get();
+        }
+    }
+
+    /**
+     * Selects the versions of an index to delete. Only indices named after the alias and a timestamp, as created by
+     * {@link #createIndex()}, count as versions, so other indices matching the alias as prefix are left alone.
+     *
+     * @param alias        Alias
+     * @param indices      Indices matching the alias as prefix
+     * @param keepVersions Number of most recent versions to keep
+     * @param current      Name of the new version, which is never deleted
+     * @return Names of obsolete versions
+     */
+    static List<String> obsoleteVersions(String alias, String[] indices, int keepVersions, String current) {
+        Pattern versionPattern = Pattern.compile(Pattern.quote(alias) + "-\\d{" + TIMESTAMP_FORMAT.length() + "}");
+        String[] versions = Arrays.stream(indices).filter(i -> versionPattern.matcher(i).matches()).sorted()
+                .toArray(String[]::new);
+        List<String> obsolete = new ArrayList<>();
+        for (int i = 0; i < versions.length - keepVersions; i++) {
+            if (!versions[i].equals(current)) obsolete.add(versions[i]);
+        }
+        return obsolete;
+    }
+}
@@ -7,6 +7,7 @@ import org.metafacture.io.ConfigurableObjectWriter;
 import org.metafacture.io.FileCompression;
 
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.Properties;
 
 /**
@@ -27,7 +28,7 @@ public class KafkaWriter<T> implements ConfigurableObjectWriter<T> {
     private PrintWriter out;
     private Boolean firstRecord = true;
     private final Properties props = new Properties();
-    private Producer<String, String> producer;
+    private Producer<String, byte[]> producer;
 
 
     /**
@@ -154,7 +155,8 @@ public class KafkaWriter<T> implements ConfigurableObjectWriter<T> {
 
     /**
      * This method is called by upstream modules to trigger the
-     * processing of {@code obj}.
+     * processing of {@code obj}. Byte arrays are sent as they are,
+     * other objects are sent as UTF-8 encoded strings.
      *
      * @param obj the object to be processed
      */
@@ -164,7 +166,8 @@ public class KafkaWriter<T> implements ConfigurableObjectWriter<T> {
             startProducer();
             firstRecord = false;
         }
-        producer.send(new ProducerRecord<>(kafkaTopic, obj.toString()));
+        byte[] value = obj instanceof byte[] ? (byte[]) obj : obj.toString().getBytes(StandardCharsets.UTF_8);
+        producer.send(new ProducerRecord<>(kafkaTopic, value));
     }
 
     /**
@@ -198,7 +201,7 @@ public class KafkaWriter<T> implements ConfigurableObjectWriter<T> {
         props.put("linger.ms", 1);
         props.put("buffer.memory", 33554432);
         props.put("key.serializer", "org.apache.kafka.common.serialization.StringSerializer");
-        props.put("value.serializer", "org.apache.kafka.common.serialization.StringSerializer");
+        props.put("value.serializer", "org.apache.kafka.common.serialization.ByteArraySerializer");
         producer = new KafkaProducer<>(props);
     }
 }
@@ -0,0 +1,118 @@
+package org.swissbib.linked.mf.writer;
+
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.IndexNotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Switches indices into load mode as soon as the first bulk for them is sent, i.e. disables refreshes and replicas,
+ * and restores the previous settings when loading is finished. Afterwards, the indices are refreshed, optionally
+ * force merged and the cluster health of the indices is awaited to turn green.
+ */
+class LoadModeSettings {
+
+    private final static Logger LOG = LoggerFactory.getLogger(LoadModeSettings.class);
+    private static final String REFRESH_INTERVAL = "index.refresh_interval";
+    private static final String NUMBER_OF_REPLICAS = "index.number_of_replicas";
+
+    private final Client client;
+    private final int forceMergeSegments;
+    private final TimeValue healthTimeout;
+    private final Set<String> requestedIndices = new HashSet<>();
+    private final Map<String, Settings> previousSettings = new LinkedHashMap<>();   // By concrete index
+
+    /**
+     * @param client             Elasticsearch client
+     * @param forceMergeSegments Number of segments to force merge the indices to, 0 for no force merge
+     * @param healthTimeout      Time to wait for green health at most
+     */
+    LoadModeSettings(Client client, int forceMergeSegments, TimeValue healthTimeout) {
+        this.client = client;
+        this.forceMergeSegments = forceMergeSegments;
+        this.healthTimeout = healthTimeout;
+    }
+
+    /**
+     * Switches indices of a bulk into load mode which aren't yet
+     *
+     * @param bulkRequest Bulk request
+     */
+    synchronized void prepare(BulkRequest bulkRequest) {
+        for (DocWriteRequest<?> request : bulkRequest.requests()) {
+            String index = request.index();
+            if (index == null || !requestedIndices.add(index)) continue;
+            GetSettingsResponse response;
+            try {
+                response = client.admin().indices().prepareGetSettings(index).get();
+            } catch (IndexNotFoundException e) {
+                // Index is created by this bulk, so it can be switched with the next one
+                LOG.warn("Index {} doesn't exist yet, switching it into load mode with next bulk", index);
+                requestedIndices.remove(index);
+                continue;
+            }
+            for (Iterator<String> it = response.getIndexToSettings().keysIt(); it.hasNext(); ) {
+                String concreteIndex = it.next();
+                if (previousSettings.containsKey(concreteIndex)) continue;
+                Settings.Builder previous = Settings.builder();
+                for (String key : new String[]{REFRESH_INTERVAL, NUMBER_OF_REPLICAS}) {
+                    String value = response.getSetting(concreteIndex, key);
+                    if (value != null) previous.put(key, value);
+                }
+                previousSettings.put(concreteIndex, previous.build());
+                LOG.info("Switching index {} into load mode", concreteIndex);
+                client.admin().indices().prepareUpdateSettings(concreteIndex).setSettings(Settings.builder()
+                        .put(REFRESH_INTERVAL, "-1")
+                        .put(NUMBER_OF_REPLICAS, 0)
+                        .build()).get();
+            }
+        }
+    }
+
+    /**
+     * Restores the settings of the indices, refreshes and force merges them and waits for green health
+     */
+    synchronized void restore() {
+        if (previousSettings.isEmpty()) return;
+        for (Map.Entry<String, Settings> entry : previousSettings.entrySet()) {
+            LOG.info("Restoring settings of index {}", entry.getKey());
+            Settings.Builder settings = Settings.builder();
+            for (String key : new String[]{REFRESH_INTERVAL, NUMBER_OF_REPLICAS}) {
+                String value = entry.getValue().get(key);
+                if (value == null) {
+                    settings.putNull(key);
+                } else {
+                    settings.put(key, value);
+                }
+            }
+            client.admin().indices().prepareUpdateSettings(entry.getKey()).setSettings(settings.build()).get();
+        }
+        String[] indices = previousSettings.keySet().toArray(new String[0]);
+        client.admin().indices().prepareRefresh(indices).get();
+        if (forceMergeSegments > 0) {
+            LOG.info("Force merging indices to {} segments", forceMergeSegments);
+            client.admin().indices().prepareForceMerge(indices).setMaxNumSegments(forceMergeSegments).get();
+        }
+        ClusterHealthResponse health = client.admin().cluster().prepareHealth(indices)
+                .setWaitForGreenStatus().setTimeout(healthTimeout).get();
+        if (health.isTimedOut()) {
+            LOG.warn("Health of indices still {} after {}", health.getStatus(), healthTimeout);
+        } else {
+            LOG.info("Health of indices is {}", health.getStatus());
+        }
+        previousSettings.clear();
+        requestedIndices.clear();
+    }
+}
@@ -0,0 +1,131 @@
+package org.swissbib.linked.mf.writer;
+
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.AliasOrIndex;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.routing.OperationRouting;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.swissbib.linked.mf.utils.TransportClientRegistry;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Determines the node holding the primary shard a document is written to, the same way Elasticsearch does: The
+ * murmur3 hash of the routing value or, by default, of the document id selects the shard, whose primary is looked up
+ * in the routing table of the cluster. For every node, a transport client connecting to this node only is provided,
+ * so bulks can be sent directly to the node which indexes their documents.
+ * <p>
+ * The cluster state is reloaded periodically and whenever a document is written to an unknown index, so relocated
+ * shards and new indices are taken into account.
+ */
+class ShardRouter {
+
+    private final static Logger LOG = LoggerFactory.getLogger(ShardRouter.class);
+    private static final long MIN_REFRESH_INTERVAL = 1000;
+
+    private final Client client;
+    private final String clustername;
+    private final long refreshInterval;
+    private final OperationRouting operationRouting = new OperationRouting(Settings.EMPTY,
+            new ClusterSettings(Settings.EMPTY, ClusterSettings.BUILT_IN_CLUSTER_SETTINGS));
+    private final Map<String, TransportClient> nodeClients = new HashMap<>();
+    private ClusterState state;
+    private long lastRefresh;
+
+    /**
+     * @param client          Elasticsearch client to read the cluster state with
+     * @param clustername     Name of the cluster
+     * @param refreshInterval Time in milliseconds after which the cluster state is reloaded
+     */
+    ShardRouter(Client client, String clustername, long refreshInterval) {
+        this.client = client;
+        this.clustername = clustername;
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Gets the node holding the primary shard of a document
+     *
+     * @param request Request to write document
+     * @return Id of node or null if the node can't be determined
+     */
+    synchronized String primaryNode(DocWriteRequest<?> request) {
+        long now = System.currentTimeMillis();
+        if (state == null || now - lastRefresh > refreshInterval) refresh(now);
+        String index = concreteIndex(request.index());
+        if (index == null && now - lastRefresh > MIN_REFRESH_INTERVAL) {
+            refresh(now);
+            index = concreteIndex(request.index());
+        }
+        if (index == null || request.id() == null) return null;
+        ShardRouting primary = state.routingTable()
+                .shardRoutingTable(operationRouting.shardId(state, index, request.id(), request.routing()))
+                .primaryShard();
+        return primary.assignedToNode() ? primary.currentNodeId() : null;
+    }
+
+    /**
+     * Gets a client connecting to a node only
+     *
+     * @param nodeId Id of node
+     * @return Client or null if the node is unknown
+     */
+    synchronized Client nodeClient(String nodeId) {
+        TransportClient nodeClient = nodeClients.get(nodeId);
+        if (nodeClient == null) {
+            DiscoveryNode node = state.nodes().get(nodeId);
+            if (node == null) return null;
+            LOG.info("Connecting to Elasticsearch node {} ({})", node.getName(), node.getAddress());
+            nodeClient = TransportClientRegistry.acquire(
+                    new String[]{node.getAddress().getAddress() + ":" + node.getAddress().getPort()}, clustername, false);
+            nodeClients.put(nodeId, nodeClient);
+        }
+        return nodeClient;
+    }
+
+    /**
+     * Closes the clients of the nodes
+     */
+    synchronized void close() {
+        for (TransportClient nodeClient : nodeClients.values()) {
+            TransportClientRegistry.release(nodeClient);
+        }
+        nodeClients.clear();
+    }
+
+    private void refresh(long now) {
+        LOG.debug("Reloading routing table");
+        state = loadState();
+        lastRefresh = now;
+    }
+
+    /**
+     * Loads the routing table, the metadata and the nodes of the cluster
+     *
+     * @return Cluster state
+     */
+    ClusterState loadState() {
+        return client.admin().cluster().prepareState().clear().setRoutingTable(true).setMetaData(true)
+                .setNodes(true).get().getState();
+    }
+
+    /**
+     * Resolves an alias pointing to a single index
+     *
+     * @return Name of concrete index or null if there is no such index
+     */
+    private String concreteIndex(String name) {
+        if (name == null) return null;
+        AliasOrIndex aliasOrIndex = state.metaData().getAliasAndIndexLookup().get(name);
+        if (aliasOrIndex == null || aliasOrIndex.getIndices().size() != 1) return null;
+        return aliasOrIndex.getIndices().get(0).getIndex().getName();
+    }
+}
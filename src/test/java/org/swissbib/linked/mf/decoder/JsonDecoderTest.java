@@ -10,6 +10,7 @@ import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 
 
 @ExtendWith(MockitoExtension.class)
@@ -190,4 +191,84 @@ class JsonDecoderTest {
         ordered.verify(receiver).endEntity();
         ordered.verify(receiver).endRecord();
     }
-}
\ No newline at end of file
+
+    @Test
+    void escapeSequences() {
+        decoder.process("{\"k1\": \"L'\\\"homme\\\"\", \"k2\": \"a\\\\b\\nc\", \"k3\": \"\\u00e9t\\u00E9\"}");
+        final InOrder ordered = inOrder(receiver);
+        ordered.verify(receiver).startRecord("");
+        ordered.verify(receiver).literal("k1", "L'\"homme\"");
+        ordered.verify(receiver).literal("k2", "a\\b\nc");
+        ordered.verify(receiver).literal("k3", "été");
+        ordered.verify(receiver).endRecord();
+    }
+
+    @Test
+    void numberGrammar() {
+        decoder.process("{\"k1\": 0, \"k2\": -0.5, \"k3\": 1e10, \"k4\": 1.5E-3, \"k5\": 01, \"k6\": 1.}");
+        final InOrder ordered = inOrder(receiver);
+        ordered.verify(receiver).startRecord("");
+        ordered.verify(receiver).literal("k1", "0");
+        ordered.verify(receiver).literal("k2", "-0.5");
+        ordered.verify(receiver).literal("k3", "1e10");
+        ordered.verify(receiver).literal("k4", "1.5E-3");
+        ordered.verify(receiver).literal("k5", "");
+        ordered.verify(receiver).literal("k6", "");
+        ordered.verify(receiver).endRecord();
+    }
+
+    @Test
+    void nestedArraysAndConsecutiveRecords() {
+        decoder.process("{\"k1\": [[1, 2], [\"3\"]], \"k2\": false}");
+        decoder.process("{\"e1\": [{\"k11\": null}, {}]}");
+        final InOrder ordered = inOrder(receiver);
+        ordered.verify(receiver).startRecord("");
+        ordered.verify(receiver).literal("k1", "1");
+        ordered.verify(receiver).literal("k1", "2");
+        ordered.verify(receiver).literal("k1", "3");
+        ordered.verify(receiver).literal("k2", "false");
+        ordered.verify(receiver).endRecord();
+        ordered.verify(receiver).startRecord("");
+        ordered.verify(receiver).startEntity("e1");
+        ordered.verify(receiver).literal("k11", "");
+        ordered.verify(receiver).endEntity();
+        ordered.verify(receiver).startEntity("e1");
+        ordered.verify(receiver).endEntity();
+        ordered.verify(receiver).endRecord();
+    }
+
+    @Test
+    void projectedFields() {
+        decoder.setFields("k2#e3.k31#e4");
+        decoder.process("{\"k1\": [{\"k11\":\"v1\"}, 2e3, null], \"k2\": \"v2\", \"e3\": {\"k31\": 3, \"k32\": [1, {\"x\": \"}]\"}]}, " +
+                "\"k5\": \"a \\\" b\", \"e4\": {\"k41\": [true]}, \"k6\": 6}");
+        final InOrder ordered = inOrder(receiver);
+        ordered.verify(receiver).startRecord("");
+        ordered.verify(receiver).literal("k2", "v2");
+        ordered.verify(receiver).startEntity("e3");
+        ordered.verify(receiver).literal("k31", "3");
+        ordered.verify(receiver).endEntity();
+        ordered.verify(receiver).startEntity("e4");
+        ordered.verify(receiver).literal("k41", "true");
+        ordered.verify(receiver).endEntity();
+        ordered.verify(receiver).endRecord();
+        verifyNoMoreInteractions(receiver);
+    }
+
+    @Test
+    void projectedFieldsInArrayOfObjects() {
+        decoder.setFields("k1.k12");
+        decoder.process("{\"k1\": [{\"k11\": \"v11\", \"k12\": \"v12\"}, {\"k12\": [1, 2]}], \"k2\": {}}");
+        final InOrder ordered = inOrder(receiver);
+        ordered.verify(receiver).startRecord("");
+        ordered.verify(receiver).startEntity("k1");
+        ordered.verify(receiver).literal("k12", "v12");
+        ordered.verify(receiver).endEntity();
+        ordered.verify(receiver).startEntity("k1");
+        ordered.verify(receiver).literal("k12", "1");
+        ordered.verify(receiver).literal("k12", "2");
+        ordered.verify(receiver).endEntity();
+        ordered.verify(receiver).endRecord();
+        verifyNoMoreInteractions(receiver);
+    }
+}
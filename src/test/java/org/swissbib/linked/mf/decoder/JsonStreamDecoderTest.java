@@ -0,0 +1,78 @@
+package org.swissbib.linked.mf.decoder;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.metafacture.framework.StreamReceiver;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.StringReader;
+
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+
+@ExtendWith(MockitoExtension.class)
+class JsonStreamDecoderTest {
+
+    private JsonStreamDecoder decoder;
+
+    @Mock
+    private StreamReceiver receiver;
+
+    @BeforeEach
+    void setUp() {
+        decoder = new JsonStreamDecoder();
+        decoder.setReceiver(receiver);
+    }
+
+    @AfterEach
+    void tearDown() {
+        decoder.closeStream();
+    }
+
+    @Test
+    void concatenatedObjects() {
+        decoder.process(new StringReader("{\"k1\": \"v1\"}{\"k2\": \"v2\"}"));
+        final InOrder ordered = inOrder(receiver);
+        ordered.verify(receiver).startRecord("");
+        ordered.verify(receiver).literal("k1", "v1");
+        ordered.verify(receiver).endRecord();
+        ordered.verify(receiver).startRecord("");
+        ordered.verify(receiver).literal("k2", "v2");
+        ordered.verify(receiver).endRecord();
+    }
+
+    @Test
+    void newlineDelimitedObjectsEndingWithNumbers() {
+        decoder.process(new StringReader("{\"k1\": 1, \"k2\": 2}\n{\"k3\": true}\n"));
+        final InOrder ordered = inOrder(receiver);
+        ordered.verify(receiver).startRecord("");
+        ordered.verify(receiver).literal("k1", "1");
+        ordered.verify(receiver).literal("k2", "2");
+        ordered.verify(receiver).endRecord();
+        ordered.verify(receiver).startRecord("");
+        ordered.verify(receiver).literal("k3", "true");
+        ordered.verify(receiver).endRecord();
+        verify(receiver, times(2)).endRecord();
+    }
+
+    @Test
+    void objectsInRootArray() {
+        decoder.process(new StringReader("[\n  {\"k1\": [1, 2]},\n  {\"e2\": {\"k21\": null}}\n]"));
+        final InOrder ordered = inOrder(receiver);
+        ordered.verify(receiver).startRecord("");
+        ordered.verify(receiver).literal("k1", "1");
+        ordered.verify(receiver).literal("k1", "2");
+        ordered.verify(receiver).endRecord();
+        ordered.verify(receiver).startRecord("");
+        ordered.verify(receiver).startEntity("e2");
+        ordered.verify(receiver).literal("k21", "");
+        ordered.verify(receiver).endEntity();
+        ordered.verify(receiver).endRecord();
+    }
+}
@@ -0,0 +1,126 @@
+package org.swissbib.linked.mf.decoder;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.metafacture.framework.StreamReceiver;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+
+@ExtendWith(MockitoExtension.class)
+class MappedJsonDecoderTest {
+
+    private MappedJsonDecoder decoder;
+    private Path file;
+
+    @Mock
+    private StreamReceiver receiver;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        decoder = new MappedJsonDecoder();
+        decoder.setReceiver(receiver);
+        file = Files.createTempFile("mapped-json", ".json");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        decoder.closeStream();
+        Files.deleteIfExists(file);
+    }
+
+    private void decode(String json) throws IOException {
+        Files.write(file, json.getBytes(StandardCharsets.UTF_8));
+        decoder.process(file.toString());
+    }
+
+    @Test
+    void complexJson() throws IOException {
+        decode("{\"k1\": [{\"k11\":\"v1\"}, 2e3, null, true], \"k2\": \"v2\", \"e3\": {\"k31\": 3, \"k32\": [1, 2, 3]}}");
+        final InOrder ordered = inOrder(receiver);
+        ordered.verify(receiver).startRecord("");
+        ordered.verify(receiver).startEntity("k1");
+        ordered.verify(receiver).literal("k11", "v1");
+        ordered.verify(receiver).endEntity();
+        ordered.verify(receiver).literal("k1", "2e3");
+        ordered.verify(receiver).literal("k1", "");
+        ordered.verify(receiver).literal("k1", "true");
+        ordered.verify(receiver).literal("k2", "v2");
+        ordered.verify(receiver).startEntity("e3");
+        ordered.verify(receiver).literal("k31", "3");
+        ordered.verify(receiver).literal("k32", "1");
+        ordered.verify(receiver).literal("k32", "2");
+        ordered.verify(receiver).literal("k32", "3");
+        ordered.verify(receiver).endEntity();
+        ordered.verify(receiver).endRecord();
+    }
+
+    @Test
+    void multibyteCharactersAndEscapes() throws IOException {
+        decode("{\"k1\": \"Molnár, Péter, a very long value to be skipped\", \"k2\": \"\\\"\\u00e9\\\\\", \"k\\u00e9\": 1}");
+        final InOrder ordered = inOrder(receiver);
+        ordered.verify(receiver).startRecord("");
+        ordered.verify(receiver).literal("k1", "Molnár, Péter, a very long value to be skipped");
+        ordered.verify(receiver).literal("k2", "\"é\\");
+        ordered.verify(receiver).literal("ké", "1");
+        ordered.verify(receiver).endRecord();
+    }
+
+    @Test
+    void malformedUnicodeEscapesAreKept() throws IOException {
+        decode("{\"k1\": \"\\u00zz\", \"k2\": \"ab\\u12\", \"k3\": \"\\u00e9\\u\"}");
+        final InOrder ordered = inOrder(receiver);
+        ordered.verify(receiver).startRecord("");
+        ordered.verify(receiver).literal("k1", "\\u00zz");
+        ordered.verify(receiver).literal("k2", "ab\\u12");
+        ordered.verify(receiver).literal("k3", "é\\u");
+        ordered.verify(receiver).endRecord();
+    }
+
+    @Test
+    void recordsCrossingWindowBoundaries() throws IOException {
+        decoder.setWindowSize("16");
+        decode("{\"k1\": \"v1\", \"k2\": {\"k21\": \"v21\"}}\n{\"k3\": [true, false]}\n{\"k4\": \"{v4}\"}\n");
+        final InOrder ordered = inOrder(receiver);
+        ordered.verify(receiver).startRecord("");
+        ordered.verify(receiver).literal("k1", "v1");
+        ordered.verify(receiver).startEntity("k2");
+        ordered.verify(receiver).literal("k21", "v21");
+        ordered.verify(receiver).endEntity();
+        ordered.verify(receiver).endRecord();
+        ordered.verify(receiver).startRecord("");
+        ordered.verify(receiver).literal("k3", "true");
+        ordered.verify(receiver).literal("k3", "false");
+        ordered.verify(receiver).endRecord();
+        ordered.verify(receiver).startRecord("");
+        ordered.verify(receiver).literal("k4", "{v4}");
+        ordered.verify(receiver).endRecord();
+        verify(receiver, times(3)).startRecord("");
+    }
+
+    @Test
+    void rootArrayWithTrailingCharacters() throws IOException {
+        decoder.setWindowSize("16");
+        decode("[{\"k1\": \"v1\"},\n {\"k2\": \"v2\"}\n]\n\n");
+        final InOrder ordered = inOrder(receiver);
+        ordered.verify(receiver).startRecord("");
+        ordered.verify(receiver).literal("k1", "v1");
+        ordered.verify(receiver).endRecord();
+        ordered.verify(receiver).startRecord("");
+        ordered.verify(receiver).literal("k2", "v2");
+        ordered.verify(receiver).endRecord();
+        verify(receiver, times(2)).startRecord("");
+    }
+}
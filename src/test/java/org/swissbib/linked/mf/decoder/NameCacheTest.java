@@ -0,0 +1,24 @@
+package org.swissbib.linked.mf.decoder;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NameCacheTest {
+
+    @Test
+    void equalNamesShareInstance() {
+        String name = NameCache.canonical(new StringBuilder("dct:contributor"));
+        assertSame(name, NameCache.canonical(new StringBuilder("dct:contributor")));
+        assertSame(name, NameCache.canonical(ByteBuffer.wrap("\"dct:contributor\"".getBytes(StandardCharsets.UTF_8)), 1, 16));
+    }
+
+    @Test
+    void nonAsciiBytesAreNotResolved() {
+        assertNull(NameCache.canonical(ByteBuffer.wrap("clé".getBytes(StandardCharsets.UTF_8)), 0, 4));
+        assertEquals("clé", NameCache.canonical("clé"));
+    }
+}
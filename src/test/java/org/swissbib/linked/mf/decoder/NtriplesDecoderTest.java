@@ -16,6 +16,9 @@ import java.io.StringReader;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 @ExtendWith(MockitoExtension.class)
 class NtriplesDecoderTest {
@@ -180,4 +183,218 @@ class NtriplesDecoderTest {
         ordered.verify(receiver).literal("http://xmlns.com/foaf/0.1/name", "Dave Beckett");
         ordered.verify(receiver).endRecord();
     }
+
+    @Test
+    void ntriplesWithBlankNodeDescribedBeforeReference() {
+        stringReader = new StringReader(
+                "_:art <http://xmlns.com/foaf/0.1/name> \"Art Barstow\".\n" +
+                        "<http://www.w3.org/2001/sw/RDFCore/ntriples/> <http://xmlns.com/foaf/0.1/maker> _:art ."
+        );
+        final InOrder ordered = inOrder(receiver);
+        decoder.process(stringReader);
+        ordered.verify(receiver).startRecord("http://xmlns.com/foaf/0.1/maker");
+        ordered.verify(receiver).literal("http://xmlns.com/foaf/0.1/name", "Art Barstow");
+        ordered.verify(receiver).endRecord();
+    }
+
+    @Test
+    void ntriplesWithBlankNodesFlushedPerSubject() {
+        decoder.setFlushPerSubject("true");
+        stringReader = new StringReader(
+                "<http://example.org/a> <http://xmlns.com/foaf/0.1/maker> _:art .\n" +
+                        "_:art <http://xmlns.com/foaf/0.1/name> \"Art Barstow\".\n" +
+                        "<http://example.org/a> <http://xmlns.com/foaf/0.1/maker> _:dave .\n" +
+                        "<http://example.org/b> <http://purl.org/dc/terms/title> \"B\" .\n" +
+                        "<http://example.org/c> <http://purl.org/dc/terms/title> \"C\" .\n" +
+                        "_:dave <http://xmlns.com/foaf/0.1/name> \"Dave Beckett\"."
+        );
+        final InOrder ordered = inOrder(receiver);
+        decoder.process(stringReader);
+        // Tree of _:art is complete when the subject changes
+        ordered.verify(receiver).startRecord("http://xmlns.com/foaf/0.1/maker");
+        ordered.verify(receiver).literal("http://xmlns.com/foaf/0.1/name", "Art Barstow");
+        ordered.verify(receiver).endRecord();
+        ordered.verify(receiver).startRecord("http://example.org/b");
+        ordered.verify(receiver).literal("http://purl.org/dc/terms/title", "B");
+        ordered.verify(receiver).endRecord();
+        ordered.verify(receiver).startRecord("http://example.org/c");
+        ordered.verify(receiver).literal("http://purl.org/dc/terms/title", "C");
+        ordered.verify(receiver).endRecord();
+        // Tree of _:dave has been spilled and is resolved at the end of the input
+        ordered.verify(receiver).startRecord("http://xmlns.com/foaf/0.1/maker");
+        ordered.verify(receiver).literal("http://xmlns.com/foaf/0.1/name", "Dave Beckett");
+        ordered.verify(receiver).endRecord();
+    }
+
+    @Test
+    void nestedSpilledTreesResolvedByExternalSort() {
+        decoder.setFlushPerSubject("true");
+        decoder.setSortChunkSize("2");
+        stringReader = new StringReader(
+                "<http://example.org/a> <http://xmlns.com/foaf/0.1/maker> _:x .\n" +
+                        "<http://example.org/b> <http://purl.org/dc/terms/title> \"B\" .\n" +
+                        "_:y <http://xmlns.com/foaf/0.1/name> \"Dave\\tBeckett \\\\ \".\n" +
+                        "<http://example.org/c> <http://xmlns.com/foaf/0.1/maker> _:z .\n" +
+                        "_:z <http://xmlns.com/foaf/0.1/name> \"Zed\".\n" +
+                        "<http://example.org/d> <http://purl.org/dc/terms/title> \"D\" .\n" +
+                        "_:x <http://xmlns.com/foaf/0.1/address> _:y .\n" +
+                        "_:w <http://xmlns.com/foaf/0.1/name> \"Nobody\".\n" +
+                        "_:x <http://xmlns.com/foaf/0.1/name> \"Art\\nBarstow\"."
+        );
+        final InOrder ordered = inOrder(receiver);
+        decoder.process(stringReader);
+        ordered.verify(receiver).startRecord("http://example.org/b");
+        ordered.verify(receiver).endRecord();
+        // Tree of _:z is complete when the subject changes
+        ordered.verify(receiver).startRecord("http://xmlns.com/foaf/0.1/maker");
+        ordered.verify(receiver).literal("http://xmlns.com/foaf/0.1/name", "Zed");
+        ordered.verify(receiver).endRecord();
+        ordered.verify(receiver).startRecord("http://example.org/d");
+        ordered.verify(receiver).endRecord();
+        // Tree of _:x has been spilled in parts and is resolved at the end of the input
+        ordered.verify(receiver).startRecord("http://xmlns.com/foaf/0.1/maker");
+        ordered.verify(receiver).startEntity("http://xmlns.com/foaf/0.1/address");
+        ordered.verify(receiver).literal("http://xmlns.com/foaf/0.1/name", "Dave\tBeckett \\ ");
+        ordered.verify(receiver).endEntity();
+        ordered.verify(receiver).literal("http://xmlns.com/foaf/0.1/name", "Art\nBarstow");
+        ordered.verify(receiver).endRecord();
+        verify(receiver, times(2)).startRecord("http://xmlns.com/foaf/0.1/maker");
+        verify(receiver, never()).literal("http://xmlns.com/foaf/0.1/name", "Nobody");
+    }
+
+    @Test
+    void ntriplesWithBlankNodeLabelsInTermDictionary() {
+        decoder.setTermDictionary("true");
+        decoder.setFlushPerSubject("true");
+        stringReader = new StringReader(
+                "<http://example.org/a> <http://xmlns.com/foaf/0.1/maker> _:art .\n" +
+                        "<http://example.org/a> <http://xmlns.com/foaf/0.1/maker> _:dave .\n" +
+                        "<http://example.org/b> <http://purl.org/dc/terms/title> \"B\" .\n" +
+                        "_:art <http://xmlns.com/foaf/0.1/name> \"Art Barstow\".\n" +
+                        "_:dave <http://xmlns.com/foaf/0.1/name> \"Dave Beckett\"."
+        );
+        final InOrder ordered = inOrder(receiver);
+        decoder.process(stringReader);
+        ordered.verify(receiver).startRecord("http://example.org/b");
+        ordered.verify(receiver).endRecord();
+        ordered.verify(receiver).startRecord("http://xmlns.com/foaf/0.1/maker");
+        ordered.verify(receiver).literal("http://xmlns.com/foaf/0.1/name", "Art Barstow");
+        ordered.verify(receiver).endRecord();
+        ordered.verify(receiver).startRecord("http://xmlns.com/foaf/0.1/maker");
+        ordered.verify(receiver).literal("http://xmlns.com/foaf/0.1/name", "Dave Beckett");
+        ordered.verify(receiver).endRecord();
+    }
+
+    @Test
+    void ntriplesGroupedBySubject() {
+        decoder.setGroupBySubject("true");
+        stringReader = new StringReader(
+                "<http://example.org/a> <http://purl.org/dc/terms/title> \"A\" .\n" +
+                        "<http://example.org/a> <http://xmlns.com/foaf/0.1/maker> _:art .\n" +
+                        "_:art <http://xmlns.com/foaf/0.1/name> \"Art Barstow\".\n" +
+                        "<http://example.org/a> <http://purl.org/dc/terms/subject> <http://example.org/s> .\n" +
+                        "<http://example.org/b> <http://purl.org/dc/terms/title> \"B\" ."
+        );
+        final InOrder ordered = inOrder(receiver);
+        decoder.process(stringReader);
+        ordered.verify(receiver).startRecord("http://example.org/a");
+        ordered.verify(receiver).literal("http://purl.org/dc/terms/title", "A");
+        ordered.verify(receiver).literal("http://purl.org/dc/terms/subject", "http://example.org/s");
+        ordered.verify(receiver).endRecord();
+        ordered.verify(receiver).startRecord("http://example.org/b");
+        ordered.verify(receiver).literal("http://purl.org/dc/terms/title", "B");
+        ordered.verify(receiver).endRecord();
+        ordered.verify(receiver).startRecord("http://xmlns.com/foaf/0.1/maker");
+        ordered.verify(receiver).literal("http://xmlns.com/foaf/0.1/name", "Art Barstow");
+        ordered.verify(receiver).endRecord();
+    }
+
+    @Test
+    void ntriplesSortedBySubject() {
+        decoder.setSortInput("true");
+        decoder.setSortChunkSize("2");
+        stringReader = new StringReader(
+                "<http://example.org/b> <http://purl.org/dc/terms/title> \"B\" .\n" +
+                        "<http://example.org/a> <http://purl.org/dc/terms/title> \"A\" .\n" +
+                        " <http://example.org/b> <http://purl.org/dc/terms/subject> <http://example.org/s> .\n" +
+                        "<http://example.org/c> <http://purl.org/dc/terms/title> \"C\" .\n" +
+                        "<http://example.org/a> <http://purl.org/dc/terms/subject> <http://example.org/s> ."
+        );
+        final InOrder ordered = inOrder(receiver);
+        decoder.process(stringReader);
+        ordered.verify(receiver).startRecord("http://example.org/a");
+        ordered.verify(receiver).literal("http://purl.org/dc/terms/subject", "http://example.org/s");
+        ordered.verify(receiver).literal("http://purl.org/dc/terms/title", "A");
+        ordered.verify(receiver).endRecord();
+        ordered.verify(receiver).startRecord("http://example.org/b");
+        ordered.verify(receiver).literal("http://purl.org/dc/terms/subject", "http://example.org/s");
+        ordered.verify(receiver).literal("http://purl.org/dc/terms/title", "B");
+        ordered.verify(receiver).endRecord();
+        ordered.verify(receiver).startRecord("http://example.org/c");
+        ordered.verify(receiver).literal("http://purl.org/dc/terms/title", "C");
+        ordered.verify(receiver).endRecord();
+    }
+
+    @Test
+    void ntripleWithEscapeSequences() {
+        stringReader = new StringReader(
+                "<http://example.org/a> <http://purl.org/dc/terms/title> \"Line\\nBreak \\\\ Moln\\u00E1r \\U0001F600\" ."
+        );
+        final InOrder ordered = inOrder(receiver);
+        decoder.process(stringReader);
+        ordered.verify(receiver).startRecord("http://example.org/a");
+        ordered.verify(receiver).literal("http://purl.org/dc/terms/title", "Line\nBreak \\ Moln\u00E1r \uD83D\uDE00");
+        ordered.verify(receiver).endRecord();
+    }
+
+    @Test
+    void ntripleWithKeptUnicodeEscapeSequences() {
+        decoder.setUnicodeEscapeSeq("false");
+        stringReader = new StringReader(
+                "<http://example.org/a> <http://purl.org/dc/terms/title> \"Moln\\u00E1r\\t\"@hu ."
+        );
+        final InOrder ordered = inOrder(receiver);
+        decoder.process(stringReader);
+        ordered.verify(receiver).startRecord("http://example.org/a");
+        ordered.verify(receiver).literal("http://purl.org/dc/terms/title", "Moln\\u00E1r\t##@hu");
+        ordered.verify(receiver).endRecord();
+    }
+
+    @Test
+    void literalLookingLikeBlankNode() {
+        stringReader = new StringReader(
+                "# Comment\n" +
+                        "\n" +
+                        "<http://example.org/a> <http://purl.org/dc/terms/title> \"_:a\" ."
+        );
+        final InOrder ordered = inOrder(receiver);
+        decoder.process(stringReader);
+        ordered.verify(receiver).startRecord("http://example.org/a");
+        ordered.verify(receiver).literal("http://purl.org/dc/terms/title", "_:a");
+        ordered.verify(receiver).endRecord();
+    }
+
+    @Test
+    void ntriplesParsedConcurrently() {
+        decoder.setThreads("4");
+        final int subjects = 40000;
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < subjects; i++) {
+            input.append("<http://example.org/").append(i).append("> <http://purl.org/dc/terms/title> \"").append(i).append("\" .\n");
+            if (i == 20000) {
+                input.append("<http://example.org/a> <http://xmlns.com/foaf/0.1/maker> _:art .\n");
+            }
+        }
+        input.append("_:art <http://xmlns.com/foaf/0.1/name> \"Art Barstow\".\n");
+        stringReader = new StringReader(input.toString());
+        final InOrder ordered = inOrder(receiver);
+        decoder.process(stringReader);
+        for (int i = 0; i < subjects; i += 9999) {
+            ordered.verify(receiver).startRecord("http://example.org/" + i);
+            ordered.verify(receiver).literal("http://purl.org/dc/terms/title", String.valueOf(i));
+        }
+        ordered.verify(receiver).startRecord("http://xmlns.com/foaf/0.1/maker");
+        ordered.verify(receiver).literal("http://xmlns.com/foaf/0.1/name", "Art Barstow");
+        verify(receiver, times(subjects + 1)).endRecord();
+    }
 }
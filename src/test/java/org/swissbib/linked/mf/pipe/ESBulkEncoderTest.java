@@ -0,0 +1,331 @@
+package org.swissbib.linked.mf.pipe;
+
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.metafacture.framework.ObjectReceiver;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+@ExtendWith(MockitoExtension.class)
+class ESBulkEncoderTest {
+
+    private ESBulkEncoder encoder;
+
+    @Mock
+    private ObjectReceiver<Object> receiver;
+
+    @BeforeEach
+    void setup() {
+        encoder = new ESBulkEncoder();
+        encoder.setIndex("testsb");
+        encoder.setType("bibliographicResource");
+        encoder.setReceiver(receiver);
+    }
+
+    @AfterEach
+    void teardown() {
+        encoder.closeStream();
+    }
+
+    @Test
+    void repeatedKeysAreMerged() {
+        encoder.startRecord("1");
+        encoder.literal("dct:title", "Title");
+        encoder.literal("dct:subject", "a");
+        encoder.startEntity("dct:contributor");
+        encoder.literal("@id", "http://example.org/p1");
+        encoder.endEntity();
+        encoder.literal("dct:subject", "b");
+        encoder.startEntity("dct:contributor");
+        encoder.literal("@id", "http://example.org/p2");
+        encoder.endEntity();
+        encoder.literal("dct:subject", "c");
+        encoder.endRecord();
+        verify(receiver).process("{\"index\":{\"_type\":\"bibliographicResource\",\"_index\":\"testsb\",\"_id\":\"1\"}}\n" +
+                "{\"dct:title\":\"Title\",\"dct:subject\":[\"a\",\"b\",\"c\"]," +
+                "\"dct:contributor\":{\"@id\":[\"http://example.org/p1\",\"http://example.org/p2\"]}}\n");
+    }
+
+    @Test
+    void entitiesWithBracesAreNotMerged() {
+        encoder.setHeader("false");
+        encoder.startRecord("1");
+        encoder.startEntity("dct:contributor{}");
+        encoder.literal("@id", "http://example.org/p1");
+        encoder.endEntity();
+        encoder.startEntity("dct:contributor{}");
+        encoder.literal("@id", "http://example.org/p2");
+        encoder.literal("rdfs:label", "\"Quoted\"");
+        encoder.endEntity();
+        encoder.endRecord();
+        verify(receiver).process("{\"dct:contributor\":[{\"@id\":\"http://example.org/p1\"}," +
+                "{\"@id\":\"http://example.org/p2\",\"rdfs:label\":\"\\\"Quoted\\\"\"}]}\n");
+    }
+
+    @Test
+    void recordAsBytesWithEscapedCharacters() {
+        encoder.setOutputBytes("true");
+        encoder.setHeader("false");
+        encoder.startRecord("1");
+        encoder.literal("dct:title", "Molnár\t\u0001\\");
+        encoder.endRecord();
+        verify(receiver).process("{\"dct:title\":\"Molnár\\t\\u0001\\\\\"}\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void recordsSerialisedAlongCompiledPlan() {
+        encoder.setUsePlan("true");
+        encoder.setHeader("false");
+        planRecord("1", "a", "Person");
+        planRecord("2", "b", null);
+        encoder.startRecord("3");
+        encoder.literal("dct:title", "Title 3");
+        encoder.literal("dct:issued", "2017");
+        encoder.endRecord();
+        planRecord("4", "c", null);
+        InOrder ordered = inOrder(receiver);
+        ordered.verify(receiver).process("{\"dct:title\":\"Title a\",\"dct:subject\":[\"a1\",\"a2\"]," +
+                "\"dct:contributor\":[{\"@id\":\"http://example.org/a1\",\"rdf:type\":\"Person\"}," +
+                "{\"@id\":\"http://example.org/a2\"}],\"bf:instanceOf\":{\"@id\":\"http://example.org/a\"}}\n");
+        ordered.verify(receiver).process("{\"dct:title\":\"Title b\",\"dct:subject\":[\"b1\",\"b2\"]," +
+                "\"dct:contributor\":[{\"@id\":\"http://example.org/b1\"}," +
+                "{\"@id\":\"http://example.org/b2\"}],\"bf:instanceOf\":{\"@id\":\"http://example.org/b\"}}\n");
+        ordered.verify(receiver).process("{\"dct:title\":\"Title 3\",\"dct:issued\":\"2017\"}\n");
+        ordered.verify(receiver).process("{\"dct:title\":\"Title c\",\"dct:subject\":[\"c1\",\"c2\"]," +
+                "\"dct:contributor\":[{\"@id\":\"http://example.org/c1\"}," +
+                "{\"@id\":\"http://example.org/c2\"}],\"bf:instanceOf\":{\"@id\":\"http://example.org/c\"}}\n");
+    }
+
+    private void planRecord(String id, String suffix, String type) {
+        encoder.startRecord(id);
+        encoder.literal("dct:title", "Title " + suffix);
+        encoder.literal("dct:subject", suffix + "1");
+        encoder.startEntity("dct:contributor{}");
+        encoder.literal("@id", "http://example.org/" + suffix + "1");
+        if (type != null) encoder.literal("rdf:type", type);
+        encoder.endEntity();
+        encoder.literal("dct:subject", suffix + "2");
+        encoder.startEntity("dct:contributor{}");
+        encoder.literal("@id", "http://example.org/" + suffix + "2");
+        encoder.endEntity();
+        encoder.startEntity("bf:instanceOf");
+        encoder.literal("@id", "http://example.org/" + suffix);
+        encoder.endEntity();
+        encoder.endRecord();
+    }
+
+    @Test
+    void recordAsSmile() throws IOException {
+        encoder.setFormat("smile");
+        encoder.startRecord("1");
+        encoder.literal("dct:title", "Molnár");
+        encoder.literal("dct:subject", "a");
+        encoder.literal("dct:subject", "b");
+        encoder.endRecord();
+        ArgumentCaptor<Object> record = ArgumentCaptor.forClass(Object.class);
+        verify(receiver).process(record.capture());
+        byte[] bytes = (byte[]) record.getValue();
+        byte separator = XContentType.SMILE.xContent().streamSeparator();
+        assertEquals(separator, bytes[bytes.length - 1]);
+        int headerEnd = 0;
+        while (bytes[headerEnd] != separator) headerEnd++;
+        assertEquals("{\"index\":{\"_type\":\"bibliographicResource\",\"_index\":\"testsb\",\"_id\":\"1\"}}",
+                smileToJson(bytes, 0, headerEnd));
+        assertEquals("{\"dct:title\":\"Molnár\",\"dct:subject\":[\"a\",\"b\"]}",
+                smileToJson(bytes, headerEnd + 1, bytes.length - headerEnd - 2));
+    }
+
+    @Test
+    void typedUpsertAsSmile() throws IOException {
+        Path mapping = Files.createTempFile("mapping", ".json");
+        Files.write(mapping, "{\"properties\":{\"bibo:numPages\":{\"type\":\"integer\"},\"schema:price\":{\"type\":\"double\"}}}"
+                .getBytes(StandardCharsets.UTF_8));
+        try {
+            encoder.setFormat("smile");
+            encoder.setMapping(mapping.toString());
+            encoder.setActionLiteral("_action");
+            encoder.setHeader("false");
+            encoder.startRecord("1");
+            encoder.literal("_action", "upsert");
+            encoder.literal("bibo:numPages", "123");
+            encoder.literal("schema:price", "-12.5");
+            encoder.startEntity("dct:contributor{}");
+            encoder.literal("@id", "http://example.org/p1");
+            encoder.endEntity();
+            encoder.endRecord();
+            ArgumentCaptor<Object> record = ArgumentCaptor.forClass(Object.class);
+            verify(receiver).process(record.capture());
+            byte[] bytes = (byte[]) record.getValue();
+            assertEquals("{\"doc\":{\"bibo:numPages\":123,\"schema:price\":-12.5," +
+                            "\"dct:contributor\":{\"@id\":\"http://example.org/p1\"}},\"doc_as_upsert\":true}",
+                    smileToJson(bytes, 0, bytes.length - 1));
+        } finally {
+            Files.delete(mapping);
+        }
+    }
+
+    private static String smileToJson(byte[] bytes, int offset, int length) throws IOException {
+        try (XContentParser parser = XContentType.SMILE.xContent()
+                .createParser(NamedXContentRegistry.EMPTY, bytes, offset, length);
+             XContentBuilder builder = XContentFactory.jsonBuilder()) {
+            parser.nextToken();
+            return builder.copyCurrentStructure(parser).string();
+        }
+    }
+
+    @Test
+    void valuesTypedByMapping() throws IOException {
+        Path mapping = Files.createTempFile("mapping", ".json");
+        Files.write(mapping, ("{\"bibliographicResource\":{\"properties\":{" +
+                "\"bibo:numPages\":{\"type\":\"integer\"},\"schema:price\":{\"type\":\"double\"}," +
+                "\"rdau:isOnline\":{\"type\":\"boolean\"},\"dct:issued\":{\"type\":\"date\"}," +
+                "\"dct:isPartOf\":{\"properties\":{\"bibo:volume\":{\"type\":\"long\"}}}}}}")
+                .getBytes(StandardCharsets.UTF_8));
+        try {
+            encoder.setMapping(mapping.toString());
+            encoder.setUsePlan("true");
+            encoder.setHeader("false");
+            for (int i = 0; i < 2; i++) {
+                encoder.startRecord("1");
+                encoder.literal("dct:title", "42");
+                encoder.literal("bibo:numPages", "123");
+                encoder.literal("bibo:numPages", "ca. 200");
+                encoder.literal("schema:price", "-12.5e1");
+                encoder.literal("rdau:isOnline", "true");
+                encoder.literal("dct:issued", null);
+                encoder.startEntity("dct:isPartOf");
+                encoder.literal("bibo:volume", "007");
+                encoder.literal("bibo:volume", "7");
+                encoder.endEntity();
+                encoder.endRecord();
+            }
+            verify(receiver, times(2)).process("{\"dct:title\":\"42\",\"bibo:numPages\":[123,\"ca. 200\"]," +
+                    "\"schema:price\":-12.5e1,\"rdau:isOnline\":true,\"dct:issued\":null," +
+                    "\"dct:isPartOf\":{\"bibo:volume\":[\"007\",7]}}\n");
+        } finally {
+            Files.delete(mapping);
+        }
+    }
+
+    @Test
+    void bulkActionsChosenByLiteral() {
+        encoder.setActionLiteral("_action");
+        encoder.startRecord("1");
+        encoder.literal("_action", "update");
+        encoder.literal("dct:title", "Title");
+        encoder.endRecord();
+        encoder.startRecord("2");
+        encoder.literal("dct:title", "Title");
+        encoder.literal("_action", "upsert");
+        encoder.endRecord();
+        encoder.startRecord("3");
+        encoder.literal("_action", "delete");
+        encoder.endRecord();
+        InOrder ordered = inOrder(receiver);
+        ordered.verify(receiver).process("{\"update\":{\"_type\":\"bibliographicResource\",\"_index\":\"testsb\"," +
+                "\"_id\":\"1\"}}\n{\"doc\":{\"dct:title\":\"Title\"}}\n");
+        ordered.verify(receiver).process("{\"update\":{\"_type\":\"bibliographicResource\",\"_index\":\"testsb\"," +
+                "\"_id\":\"2\"}}\n{\"doc\":{\"dct:title\":\"Title\"},\"doc_as_upsert\":true}\n");
+        ordered.verify(receiver).process("{\"delete\":{\"_type\":\"bibliographicResource\",\"_index\":\"testsb\"," +
+                "\"_id\":\"3\"}}\n");
+    }
+
+    @Test
+    void unchangedDocumentsSkipped() throws IOException {
+        Path fingerprints = Files.createTempFile("fingerprints", ".gz");
+        Files.delete(fingerprints);
+        try {
+            encoder.setHeader("false");
+            encoder.setFingerprintFile(fingerprints.toString());
+            record("1", "Title");
+            record("2", "Title");
+            record("1", "Title");
+            encoder.closeStream();
+            // Fingerprints are pending until index-esbulk commits them
+            Path pending = Paths.get(fingerprints + ESBulkEncoder.PENDING_SUFFIX);
+            assertFalse(Files.exists(fingerprints));
+            Files.move(pending, fingerprints);
+            encoder = new ESBulkEncoder();
+            encoder.setHeader("false");
+            encoder.setFingerprintFile(fingerprints.toString());
+            encoder.setReceiver(receiver);
+            record("1", "Title");
+            record("2", "New title");
+            verify(receiver, times(2)).process("{\"dct:title\":\"Title\"}\n");
+            verify(receiver).process("{\"dct:title\":\"New title\"}\n");
+        } finally {
+            encoder.closeStream();
+            Files.deleteIfExists(fingerprints);
+            Files.deleteIfExists(Paths.get(fingerprints + ESBulkEncoder.PENDING_SUFFIX));
+        }
+    }
+
+    @Test
+    void deletionsWithoutHeaderDropped() throws IOException {
+        Path fingerprints = Files.createTempFile("fingerprints", ".gz");
+        Files.delete(fingerprints);
+        try {
+            encoder.setHeader("false");
+            encoder.setActionLiteral("_action");
+            encoder.setFingerprintFile(fingerprints.toString());
+            record("1", "Title");
+            encoder.startRecord("1");
+            encoder.literal("_action", "delete");
+            encoder.endRecord();
+            // Document hasn't been deleted, so it is still unchanged
+            record("1", "Title");
+            verify(receiver).process("{\"dct:title\":\"Title\"}\n");
+            verifyNoMoreInteractions(receiver);
+        } finally {
+            encoder.closeStream();
+            Files.deleteIfExists(Paths.get(fingerprints + ESBulkEncoder.PENDING_SUFFIX));
+        }
+    }
+
+    private void record(String id, String title) {
+        encoder.startRecord(id);
+        encoder.literal("dct:title", title);
+        encoder.endRecord();
+    }
+
+    @Test
+    void headerWithoutIndex() {
+        encoder.setIndex(null);
+        record("1", "Title");
+        verify(receiver).process("{\"index\":{\"_type\":\"bibliographicResource\",\"_id\":\"1\"}}\n" +
+                "{\"dct:title\":\"Title\"}\n");
+    }
+
+    @Test
+    void routingTakenFromLiteral() {
+        encoder.setRoutingLiteral("_routing");
+        encoder.startRecord("1");
+        encoder.literal("_routing", "resource-1");
+        encoder.literal("dct:title", "Title");
+        encoder.endRecord();
+        verify(receiver).process("{\"index\":{\"_type\":\"bibliographicResource\",\"_index\":\"testsb\"," +
+                "\"_id\":\"1\",\"_routing\":\"resource-1\"}}\n{\"dct:title\":\"Title\"}\n");
+    }
+}
@@ -0,0 +1,152 @@
+package org.swissbib.linked.mf.pipe;
+
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.index.get.GetResult;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.metafacture.framework.StreamReceiver;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class ESLookupTest {
+
+    private ESLookup lookup;
+
+    @Mock
+    private TransportClient client;
+
+    @Mock
+    private MultiGetRequestBuilder request;
+
+    @Mock
+    private StreamReceiver receiver;
+
+    @BeforeEach
+    void setup() {
+        lookup = new ESLookup(client);
+        lookup.setEsIndex("testsb");
+        lookup.setEsType("bibliographicResource");
+        lookup.setBatchWindow(String.valueOf(Long.MAX_VALUE));
+        lookup.setReceiver(receiver);
+    }
+
+    @Test
+    void existingRecordsAreDroppedAndOthersPassedOnInOrder() {
+        lookup.setBatchSize("3");
+        when(client.prepareMultiGet()).thenReturn(request);
+        when(request.get()).thenReturn(response(found("1"), notFound("2"), notFound("3")));
+        record("1");
+        record("2");
+        verifyZeroInteractions(client, receiver);
+        record("3");
+        InOrder ordered = inOrder(receiver);
+        ordered.verify(receiver).startRecord("2");
+        ordered.verify(receiver).literal("title", "Title 2");
+        ordered.verify(receiver).endRecord();
+        ordered.verify(receiver).startRecord("3");
+        ordered.verify(receiver).literal("title", "Title 3");
+        ordered.verify(receiver).endRecord();
+        verify(receiver, never()).startRecord("1");
+        ArgumentCaptor<MultiGetRequest.Item> items = ArgumentCaptor.forClass(MultiGetRequest.Item.class);
+        verify(request, times(3)).add(items.capture());
+        assertEquals(Arrays.asList("1", "2", "3"),
+                items.getAllValues().stream().map(MultiGetRequest.Item::id).collect(Collectors.toList()));
+        assertEquals("testsb", items.getValue().index());
+        assertFalse(items.getValue().fetchSourceContext().fetchSource());
+    }
+
+    @Test
+    void failedLookupsKeepRecord() {
+        lookup.setBatchSize("2");
+        when(client.prepareMultiGet()).thenReturn(request);
+        when(request.get()).thenReturn(response(failed("1"), found("2")));
+        record("1");
+        record("2");
+        verify(receiver).startRecord("1");
+        verify(receiver, never()).startRecord("2");
+    }
+
+    @Test
+    void incompleteBatchIsLookedUpOnClose() {
+        when(client.prepareMultiGet()).thenReturn(request);
+        when(request.get()).thenReturn(response(notFound("1")));
+        record("1");
+        verifyZeroInteractions(receiver);
+        lookup.closeStream();
+        InOrder ordered = inOrder(receiver);
+        ordered.verify(receiver).startRecord("1");
+        ordered.verify(receiver).endRecord();
+        ordered.verify(receiver).closeStream();
+    }
+
+    @Test
+    void incompleteBatchIsLookedUpOnReset() {
+        when(client.prepareMultiGet()).thenReturn(request);
+        when(request.get()).thenReturn(response(notFound("1")), response(found("2")));
+        record("1");
+        lookup.resetStream();
+        record("2");
+        lookup.resetStream();
+        InOrder ordered = inOrder(receiver);
+        ordered.verify(receiver).startRecord("1");
+        ordered.verify(receiver, times(2)).resetStream();
+        verify(receiver, never()).startRecord("2");
+        verify(request, times(2)).get();
+    }
+
+    @Test
+    void emptyBatchIsNotLookedUp() {
+        lookup.resetStream();
+        verifyZeroInteractions(client);
+        verify(receiver, never()).startRecord(anyString());
+        verify(request, never()).add(any(MultiGetRequest.Item.class));
+    }
+
+    private void record(String id) {
+        lookup.startRecord(id);
+        lookup.literal("title", "Title " + id);
+        lookup.endRecord();
+    }
+
+    private static MultiGetResponse response(MultiGetItemResponse... items) {
+        return new MultiGetResponse(items);
+    }
+
+    private static MultiGetItemResponse found(String id) {
+        return new MultiGetItemResponse(
+                new GetResponse(new GetResult("testsb", "bibliographicResource", id, 1, true, null, null)), null);
+    }
+
+    private static MultiGetItemResponse notFound(String id) {
+        return new MultiGetItemResponse(
+                new GetResponse(new GetResult("testsb", "bibliographicResource", id, -1, false, null, null)), null);
+    }
+
+    private static MultiGetItemResponse failed(String id) {
+        return new MultiGetItemResponse(null, new MultiGetResponse.Failure("testsb", "bibliographicResource", id,
+                new IllegalStateException("no shard available")));
+    }
+}
@@ -0,0 +1,73 @@
+package org.swissbib.linked.mf.pipe;
+
+import com.google.common.hash.Hashing;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.metafacture.framework.ObjectReceiver;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.mockito.Mockito.verify;
+
+@ExtendWith(MockitoExtension.class)
+class NtriplesEncoderTest {
+
+    private NtriplesEncoder encoder;
+
+    @Mock
+    private ObjectReceiver<Object> receiver;
+
+    @BeforeEach
+    void setup() {
+        encoder = new NtriplesEncoder();
+        encoder.setReceiver(receiver);
+    }
+
+    @AfterEach
+    void teardown() {
+        encoder.closeStream();
+    }
+
+    @Test
+    void recordWithUrisAndLiterals() {
+        encoder.startRecord("http://example.org/a");
+        encoder.literal("http://purl.org/dc/terms/subject", "http://example.org/s");
+        encoder.literal("http://purl.org/dc/terms/title", "Molnár: \"Title\"\nwith \\ break");
+        encoder.endRecord();
+        verify(receiver).process("<http://example.org/a> <http://purl.org/dc/terms/subject> <http://example.org/s> .\n" +
+                "<http://example.org/a> <http://purl.org/dc/terms/title> \"Molnár: \\\"Title\\\"\\nwith \\\\ break\" .\n");
+    }
+
+    @Test
+    void recordWithEntityAsBytes() {
+        encoder.setOutputBytes("true");
+        encoder.startRecord("http://example.org/a");
+        encoder.startEntity("http://xmlns.com/foaf/0.1/maker");
+        encoder.literal("http://xmlns.com/foaf/0.1/name", "Art :");
+        encoder.endEntity();
+        encoder.endRecord();
+        String bnode = "_:b" + Hashing.murmur3_128().hashString("http://example.org/a", StandardCharsets.UTF_8) + "-1";
+        verify(receiver).process(("<http://example.org/a> <http://xmlns.com/foaf/0.1/maker> " + bnode + " .\n" +
+                bnode + " <http://xmlns.com/foaf/0.1/name> \"Art :\" .\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void blankNodeLabelsDerivedFromRecordIdentifier() {
+        String prefix = "_:b" + Hashing.murmur3_128().hashString("http://example.org/b", StandardCharsets.UTF_8) + "-";
+        encoder.startRecord("http://example.org/b");
+        encoder.startEntity("http://example.org/p");
+        encoder.startEntity("http://example.org/q");
+        encoder.endEntity();
+        encoder.endEntity();
+        encoder.startEntity("http://example.org/r");
+        encoder.endEntity();
+        encoder.endRecord();
+        verify(receiver).process("<http://example.org/b> <http://example.org/p> " + prefix + "1 .\n" +
+                prefix + "1 <http://example.org/q> " + prefix + "2 .\n" +
+                "<http://example.org/b> <http://example.org/r> " + prefix + "3 .\n");
+    }
+}
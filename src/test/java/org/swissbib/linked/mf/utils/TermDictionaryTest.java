@@ -0,0 +1,65 @@
+package org.swissbib.linked.mf.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TermDictionaryTest {
+
+    @Test
+    void termsWithCollidingHashesKeepDistinctIds() {
+        TermDictionary dictionary = new TermDictionary();
+        // "Aa" and "BB" have the same hash
+        int aa = dictionary.add("Aa");
+        int bb = dictionary.add("BB");
+        assertNotEquals(aa, bb);
+        assertEquals(aa, dictionary.add("Aa"));
+        assertEquals(bb, dictionary.lookup("BB"));
+        assertEquals(-1, dictionary.lookup("AaBB"));
+        assertEquals("Aa", dictionary.term(aa));
+        assertEquals("BB", dictionary.term(bb));
+        assertEquals(2, dictionary.size());
+    }
+
+    @Test
+    void dictionaryGrowsBeyondInitialCapacity() {
+        TermDictionary dictionary = new TermDictionary();
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            padding.append('x');
+        }
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(i, dictionary.add("_:b" + i + padding));
+        }
+        assertEquals(5000, dictionary.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(i, dictionary.lookup("_:b" + i + padding));
+            assertEquals("_:b" + i + padding, dictionary.term(i));
+        }
+    }
+
+    @Test
+    void nonAsciiTermsRoundTrip() {
+        TermDictionary dictionary = new TermDictionary();
+        String[] terms = {"_:café", "_:Ωmega", "_:日本", "_:😀", "_:cafe"};
+        for (int i = 0; i < terms.length; i++) {
+            assertEquals(i, dictionary.add(terms[i]));
+        }
+        for (int i = 0; i < terms.length; i++) {
+            assertEquals(terms[i], dictionary.term(i));
+            assertEquals(i, dictionary.lookup(terms[i]));
+        }
+    }
+
+    @Test
+    void clearedDictionaryStartsWithIdZero() {
+        TermDictionary dictionary = new TermDictionary();
+        dictionary.add("_:a");
+        dictionary.add("_:b");
+        dictionary.clear();
+        assertEquals(0, dictionary.size());
+        assertEquals(-1, dictionary.lookup("_:a"));
+        assertEquals(0, dictionary.add("_:b"));
+        assertThrows(IndexOutOfBoundsException.class, () -> dictionary.term(1));
+    }
+}
@@ -0,0 +1,87 @@
+package org.swissbib.linked.mf.writer;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdaptiveBulkSizingTest {
+
+    @Test
+    void fastBulksGrowSizeThenConcurrency() throws InterruptedException {
+        AdaptiveBulkSizing sizing = new AdaptiveBulkSizing(100, 300, 2, 1000);
+        assertEquals(100, sizing.bulkSize());
+        for (long expected : new long[]{200, 300, 300, 300}) {
+            sizing.acquire();
+            sizing.release(10, 20, 0);
+            assertEquals(expected, sizing.bulkSize());
+        }
+        assertEquals(2, sizing.concurrentRequests());
+    }
+
+    @Test
+    void rejectionsHalveSizeAndConcurrency() throws InterruptedException {
+        AdaptiveBulkSizing sizing = grownSizing();
+        sizing.acquire();
+        sizing.release(10, 20, 3);
+        assertEquals(150, sizing.bulkSize());
+        assertEquals(1, sizing.concurrentRequests());
+        sizing.acquire();
+        sizing.release(10, 20, 1);
+        assertEquals(100, sizing.bulkSize());
+    }
+
+    @Test
+    void slowBulksHalveSizeOnly() throws InterruptedException {
+        AdaptiveBulkSizing sizing = grownSizing();
+        sizing.acquire();
+        sizing.release(1500, 1500, 0);
+        assertEquals(150, sizing.bulkSize());
+        assertEquals(2, sizing.concurrentRequests());
+    }
+
+    @Test
+    void longWaitsDecreaseConcurrency() throws InterruptedException {
+        AdaptiveBulkSizing sizing = grownSizing();
+        sizing.acquire();
+        sizing.release(100, 1500, 0);
+        assertEquals(300, sizing.bulkSize());
+        assertEquals(1, sizing.concurrentRequests());
+    }
+
+    @Test
+    void acquireWaitsForRelease() throws InterruptedException {
+        AdaptiveBulkSizing sizing = new AdaptiveBulkSizing(100, 300, 1, 1000);
+        sizing.acquire();
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread sender = new Thread(() -> {
+            try {
+                sizing.acquire();
+                acquired.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        sender.start();
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        sizing.release(10, 20, 0);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        sizing.release(10, 20, 0);
+        sizing.awaitIdle();
+        sender.join();
+    }
+
+    /**
+     * @return Sizing at maximal bulk size with two concurrent requests
+     */
+    private static AdaptiveBulkSizing grownSizing() throws InterruptedException {
+        AdaptiveBulkSizing sizing = new AdaptiveBulkSizing(100, 300, 2, 1000);
+        for (int i = 0; i < 3; i++) {
+            sizing.acquire();
+            sizing.release(10, 20, 0);
+        }
+        return sizing;
+    }
+}
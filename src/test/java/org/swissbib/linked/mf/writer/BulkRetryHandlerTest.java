@@ -0,0 +1,181 @@
+package org.swissbib.linked.mf.writer;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class BulkRetryHandlerTest {
+
+    private Path deadLetterFile;
+
+    @Mock
+    private Client client;
+
+    @BeforeEach
+    void setup() throws IOException {
+        deadLetterFile = Files.createTempFile("dead-letters", ".gz");
+    }
+
+    @AfterEach
+    void teardown() throws IOException {
+        Files.deleteIfExists(deadLetterFile);
+    }
+
+    @Test
+    void itemsFailingPermanentlyAreWrittenToDeadLetterFile() throws IOException {
+        BulkRetryHandler handler = new BulkRetryHandler(client, 1, 3, deadLetterFile.toString());
+        BulkRequest bulkRequest = new BulkRequest()
+                .add(new IndexRequest("testsb", "bibliographicResource", "1")
+                        .source("{\"dct:title\":\"Title\"}", XContentType.JSON))
+                .add(new IndexRequest("testsb", "bibliographicResource", "2")
+                        .source("{\"dct:title\":\"Other title\"}", XContentType.JSON))
+                .add(new DeleteRequest("testsb", "bibliographicResource", "3").routing("r"));
+        handler.handle(bulkRequest, response(bulkRequest,
+                new IllegalArgumentException("mapper_parsing_exception"), null,
+                new IllegalArgumentException("illegal_argument_exception")));
+        handler.close();
+        verifyZeroInteractions(client);
+        assertEquals(2, handler.deadLetterCount());
+        List<String> lines = readDeadLetters();
+        assertEquals(3, lines.size());
+        assertEquals("{\"index\":{\"_index\":\"testsb\",\"_type\":\"bibliographicResource\",\"_id\":\"1\"}}",
+                lines.get(0));
+        assertEquals("{\"dct:title\":\"Title\"}", lines.get(1));
+        assertEquals("{\"delete\":{\"_index\":\"testsb\",\"_type\":\"bibliographicResource\",\"_id\":\"3\"," +
+                "\"_routing\":\"r\"}}", lines.get(2));
+    }
+
+    @Test
+    void rejectedItemsAreRetried() {
+        BulkRetryHandler handler = new BulkRetryHandler(client, 1, 3, deadLetterFile.toString());
+        BulkRequest bulkRequest = request(2);
+        BulkResponse success = mock(BulkResponse.class);
+        when(success.hasFailures()).thenReturn(false);
+        ArgumentCaptor<BulkRequest> retry = ArgumentCaptor.forClass(BulkRequest.class);
+        doAnswer(invocation -> {
+            invocation.<ActionListener<BulkResponse>>getArgument(1).onResponse(success);
+            return null;
+        }).when(client).bulk(retry.capture(), any());
+        handler.handle(bulkRequest, response(bulkRequest, null, new EsRejectedExecutionException("queue full")));
+        handler.close();
+        assertEquals(0, handler.deadLetterCount());
+        assertEquals(1, retry.getValue().numberOfActions());
+        assertEquals("2", retry.getValue().requests().get(0).id());
+    }
+
+    @Test
+    void itemsStillRejectedAfterLastRetryAreDeadLettered() {
+        BulkRetryHandler handler = new BulkRetryHandler(client, 1, 2, null);
+        doAnswer(invocation -> {
+            BulkRequest retryRequest = invocation.getArgument(0);
+            invocation.<ActionListener<BulkResponse>>getArgument(1).onResponse(
+                    response(retryRequest, new EsRejectedExecutionException("queue full")));
+            return null;
+        }).when(client).bulk(any(), any());
+        BulkRequest bulkRequest = request(1);
+        handler.handle(bulkRequest, response(bulkRequest, new EsRejectedExecutionException("queue full")));
+        handler.close();
+        verify(client, times(2)).bulk(any(), any());
+        assertEquals(1, handler.deadLetterCount());
+    }
+
+    @Test
+    void rejectedBulksAreRetriedAsWhole() {
+        BulkRetryHandler handler = new BulkRetryHandler(client, 1, 2, null);
+        BulkResponse success = mock(BulkResponse.class);
+        when(success.hasFailures()).thenReturn(false);
+        ArgumentCaptor<BulkRequest> retry = ArgumentCaptor.forClass(BulkRequest.class);
+        doAnswer(invocation -> {
+            invocation.<ActionListener<BulkResponse>>getArgument(1).onResponse(success);
+            return null;
+        }).when(client).bulk(retry.capture(), any());
+        BulkRequest bulkRequest = request(3);
+        handler.handle(bulkRequest, new EsRejectedExecutionException("queue full"));
+        handler.close();
+        assertEquals(3, retry.getValue().numberOfActions());
+        assertEquals(0, handler.deadLetterCount());
+    }
+
+    @Test
+    void unwritableDeadLetterFileDoesNotFailListener() throws IOException {
+        Path directory = Files.createTempDirectory("dead-letters");
+        try {
+            BulkRetryHandler handler = new BulkRetryHandler(client, 1, 2, directory.toString());
+            BulkRequest bulkRequest = request(1);
+            handler.handle(bulkRequest, new IllegalStateException("node closed"));
+            handler.close();
+            assertEquals(1, handler.deadLetterCount());
+        } finally {
+            Files.delete(directory);
+        }
+    }
+
+    private static BulkRequest request(int items) {
+        BulkRequest bulkRequest = new BulkRequest();
+        for (int i = 1; i <= items; i++) {
+            bulkRequest.add(new IndexRequest("testsb", "bibliographicResource", String.valueOf(i))
+                    .source("{\"dct:title\":\"Title\"}", XContentType.JSON));
+        }
+        return bulkRequest;
+    }
+
+    /**
+     * Creates a response to a bulk request
+     *
+     * @param bulkRequest Bulk request
+     * @param failures    Causes of failure of the items, null for successful items
+     * @return Response
+     */
+    private static BulkResponse response(BulkRequest bulkRequest, Exception... failures) {
+        BulkItemResponse[] items = new BulkItemResponse[failures.length];
+        for (int i = 0; i < failures.length; i++) {
+            DocWriteRequest<?> request = bulkRequest.requests().get(i);
+            items[i] = failures[i] == null ?
+                    mock(BulkItemResponse.class) :
+                    new BulkItemResponse(i, request.opType(),
+                            new BulkItemResponse.Failure(request.index(), request.type(), request.id(), failures[i]));
+        }
+        return new BulkResponse(items, 1);
+    }
+
+    private List<String> readDeadLetters() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(deadLetterFile)), StandardCharsets.UTF_8))) {
+            return reader.lines().collect(Collectors.toList());
+        }
+    }
+}
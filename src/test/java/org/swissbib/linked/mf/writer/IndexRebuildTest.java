@@ -0,0 +1,33 @@
+package org.swissbib.linked.mf.writer;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class IndexRebuildTest {
+
+    @Test
+    void onlyTimestampedVersionsArePruned() {
+        String[] indices = {"sb-authority", "sb-20180102120000", "sb-archive", "sb-20180101120000",
+                "sb-20180103120000", "sb-2018", "sb-20180104120000"};
+        assertEquals(Arrays.asList("sb-20180101120000", "sb-20180102120000"),
+                IndexRebuild.obsoleteVersions("sb", indices, 2, "sb-20180104120000"));
+    }
+
+    @Test
+    void newVersionIsKept() {
+        String[] indices = {"sb-20180102120000", "sb-20180101120000"};
+        assertEquals(Collections.emptyList(),
+                IndexRebuild.obsoleteVersions("sb", indices, 1, "sb-20180101120000"));
+    }
+
+    @Test
+    void aliasIsMatchedLiterally() {
+        String[] indices = {"s.b-20180101120000", "sxb-20180101120000"};
+        assertEquals(Collections.singletonList("s.b-20180101120000"),
+                IndexRebuild.obsoleteVersions("s.b", indices, 0, "s.b-20180102120000"));
+    }
+}
@@ -0,0 +1,104 @@
+package org.swissbib.linked.mf.writer;
+
+import org.elasticsearch.Version;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.AliasMetaData;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.cluster.routing.IndexRoutingTable;
+import org.elasticsearch.cluster.routing.Murmur3HashFunction;
+import org.elasticsearch.cluster.routing.RecoverySource;
+import org.elasticsearch.cluster.routing.RoutingTable;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.cluster.routing.UnassignedInfo;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.shard.ShardId;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ShardRouterTest {
+
+    private static final int SHARDS = 5;
+
+    @Test
+    void documentsAreRoutedToNodeOfPrimaryShard() {
+        ShardRouter router = router(clusterState(SHARDS, SHARDS));
+        for (int i = 0; i < 1000; i++) {
+            String id = "0" + (100000000 + i);
+            assertEquals(node(Math.floorMod(Murmur3HashFunction.hash(id), SHARDS)),
+                    router.primaryNode(new IndexRequest("testsb", "bibliographicResource", id)), id);
+        }
+    }
+
+    @Test
+    void routingValueSelectsShard() {
+        ShardRouter router = router(clusterState(SHARDS, SHARDS));
+        for (int i = 0; i < 100; i++) {
+            String routing = "r" + i;
+            assertEquals(node(Math.floorMod(Murmur3HashFunction.hash(routing), SHARDS)),
+                    router.primaryNode(new DeleteRequest("testsb", "bibliographicResource", "1").routing(routing)));
+        }
+    }
+
+    @Test
+    void aliasIsResolved() {
+        ShardRouter router = router(clusterState(SHARDS, SHARDS));
+        assertEquals(router.primaryNode(new IndexRequest("testsb", "bibliographicResource", "42")),
+                router.primaryNode(new IndexRequest("sb", "bibliographicResource", "42")));
+    }
+
+    @Test
+    void unassignedPrimaryAndUnknownIndexHaveNoNode() {
+        ShardRouter router = router(clusterState(SHARDS, 0));
+        assertNull(router.primaryNode(new IndexRequest("testsb", "bibliographicResource", "42")));
+        assertNull(router.primaryNode(new IndexRequest("unknown", "bibliographicResource", "42")));
+        assertNull(router.primaryNode(new IndexRequest("testsb", "bibliographicResource")));
+    }
+
+    private static ShardRouter router(ClusterState state) {
+        return new ShardRouter(null, "test", Long.MAX_VALUE) {
+            @Override
+            ClusterState loadState() {
+                return state;
+            }
+        };
+    }
+
+    private static String node(int shard) {
+        return "node" + (shard % 2);
+    }
+
+    /**
+     * Creates the state of a cluster with an index testsb, aliased as sb, whose primary shards are spread over two
+     * nodes
+     *
+     * @param shards         Number of shards
+     * @param assignedShards Number of primary shards which are assigned to a node
+     * @return Cluster state
+     */
+    private static ClusterState clusterState(int shards, int assignedShards) {
+        IndexMetaData indexMetaData = IndexMetaData.builder("testsb")
+                .settings(Settings.builder().put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT))
+                .numberOfShards(shards)
+                .numberOfReplicas(0)
+                .putAlias(AliasMetaData.builder("sb"))
+                .build();
+        IndexRoutingTable.Builder indexRoutingTable = IndexRoutingTable.builder(indexMetaData.getIndex());
+        for (int i = 0; i < shards; i++) {
+            ShardRouting shard = ShardRouting.newUnassigned(new ShardId(indexMetaData.getIndex(), i), true,
+                    RecoverySource.StoreRecoverySource.EMPTY_STORE_INSTANCE,
+                    new UnassignedInfo(UnassignedInfo.Reason.INDEX_CREATED, null));
+            if (i < assignedShards) shard = shard.initialize(node(i), null, 0).moveToStarted();
+            indexRoutingTable.addShard(shard);
+        }
+        return ClusterState.builder(new ClusterName("test"))
+                .metaData(MetaData.builder().put(indexMetaData, false))
+                .routingTable(RoutingTable.builder().add(indexRoutingTable).build())
+                .build();
+    }
+}